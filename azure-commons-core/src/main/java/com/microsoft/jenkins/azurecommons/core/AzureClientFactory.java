@@ -15,19 +15,37 @@
  */
 package com.microsoft.jenkins.azurecommons.core;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.microsoft.azure.AzureEnvironment;
 import com.microsoft.azure.credentials.ApplicationTokenCredentials;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
 import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.azurecommons.core.credentials.CachedApplicationTokenCredentials;
 import com.microsoft.jenkins.azurecommons.core.credentials.ImdsTokenCredentials;
 import com.microsoft.jenkins.azurecommons.core.credentials.MsiTokenCredentials;
 import com.microsoft.jenkins.azurecommons.core.credentials.RemoteImdsTokenCredentials;
 import com.microsoft.jenkins.azurecommons.core.credentials.RemoteMsiTokenCredentials;
 import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import com.microsoft.jenkins.azurecommons.core.http.ArmThrottlingGovernor;
+import com.microsoft.jenkins.azurecommons.core.http.RequestCoalescer;
+import com.microsoft.jenkins.azurecommons.core.http.SharedHttpPool;
 import jenkins.model.Jenkins;
+import okhttp3.Interceptor;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,6 +53,35 @@ public final class AzureClientFactory {
 
     private static final Logger LOGGER = Logger.getLogger(AzureClientFactory.class.getName());
 
+    /**
+     * Maximum number of cached clients, 0 disables the client cache.
+     */
+    static final long CLIENT_CACHE_SIZE = Long.getLong(AzureClientFactory.class.getName() + ".clientCacheSize", 100);
+
+    /**
+     * Cached clients are rebuilt after this many minutes, so that they pick up the rotated secrets.
+     */
+    static final long CLIENT_CACHE_TTL_MINUTES =
+            Long.getLong(AzureClientFactory.class.getName() + ".clientCacheTtlMinutes", 30);
+
+    private static final Cache<ClientKey, Azure> CLIENTS = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(CLIENT_CACHE_SIZE, 0))
+            .expireAfterWrite(CLIENT_CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    /**
+     * The resolved default subscriptions are listed again after this many minutes.
+     */
+    static final long DEFAULT_SUBSCRIPTION_TTL_MINUTES =
+            Long.getLong(AzureClientFactory.class.getName() + ".defaultSubscriptionTtlMinutes", 60);
+
+    private static final int MAX_DEFAULT_SUBSCRIPTIONS = 100;
+
+    private static final Cache<String, String> DEFAULT_SUBSCRIPTIONS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DEFAULT_SUBSCRIPTIONS)
+            .expireAfterWrite(DEFAULT_SUBSCRIPTION_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+
     public static String getUserAgent(String pluginName, String version) {
         String instanceId = null;
         try {
@@ -53,18 +100,11 @@ public final class AzureClientFactory {
     }
 
     private static AzureEnvironment createAzureEnvironment(TokenCredentialData token) {
-        String envName = token.getAzureEnvironmentName();
-        AzureEnvironment azureEnvironment = AzureEnvUtil.resolveAzureEnv(envName);
-
-        AzureEnvUtil.resolveOverride(azureEnvironment,
-                AzureEnvironment.Endpoint.MANAGEMENT, token.getManagementEndpoint());
-        AzureEnvUtil.resolveOverride(azureEnvironment,
-                AzureEnvironment.Endpoint.ACTIVE_DIRECTORY, token.getActiveDirectoryEndpoint());
-        AzureEnvUtil.resolveOverride(azureEnvironment,
-                AzureEnvironment.Endpoint.RESOURCE_MANAGER, token.getResourceManagerEndpoint());
-        AzureEnvUtil.resolveOverride(azureEnvironment,
-                AzureEnvironment.Endpoint.GRAPH, token.getGraphEndpoint());
-        return azureEnvironment;
+        return AzureEnvUtil.resolveAzureEnv(token.getAzureEnvironmentName(),
+                token.getManagementEndpoint(),
+                token.getActiveDirectoryEndpoint(),
+                token.getResourceManagerEndpoint(),
+                token.getGraphEndpoint());
     }
 
     @Nonnull
@@ -73,8 +113,114 @@ public final class AzureClientFactory {
     }
 
 
+    /**
+     * Get a client for the given credential data. The clients are cached by a fingerprint of the data and by the
+     * configurer, so that the steps using the same credentials share one client.
+     * <p>
+     * Only the clients built without a configurer or with a configurer that overrides {@code equals} are cached, such
+     * as the ones created with {@link #withInterceptors(Interceptor...)} from interceptors that override
+     * {@code equals}. A client built with an anonymous class or a lambda is created on each call, as it would never be
+     * found in the cache again.
+     */
     @Nonnull
-    public static Azure getClient(TokenCredentialData data, Configurer configurer) {
+    public static Azure getClient(final TokenCredentialData data, final Configurer configurer) {
+        if (CLIENT_CACHE_SIZE <= 0 || !hasValueEquality(configurer)) {
+            return createClient(data, configurer);
+        }
+        try {
+            return CLIENTS.get(new ClientKey(fingerprint(data), configurer), new Callable<Azure>() {
+                @Override
+                public Azure call() {
+                    return createClient(data, configurer);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Drop all the cached clients and default subscriptions, for example after the credentials have been changed.
+     */
+    public static void invalidateClientCache() {
+        CLIENTS.invalidateAll();
+        DEFAULT_SUBSCRIPTIONS.invalidateAll();
+    }
+
+    /**
+     * Drop the cached clients built from the given credential data, for example after the credentials have been
+     * updated or removed. The clients of the other credentials are kept.
+     */
+    public static void invalidateClients(TokenCredentialData data) {
+        final String fingerprint = fingerprint(data);
+        CLIENTS.asMap().keySet().removeIf(key -> key.fingerprint.equals(fingerprint));
+    }
+
+    /**
+     * A stable fingerprint of everything in the credential data that affects the client. The secrets are hashed so
+     * that they are not kept in the cache keys.
+     */
+    static String fingerprint(TokenCredentialData data) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putInt(data.getType());
+        putString(hasher, data.getAzureEnvironmentName());
+        putString(hasher, data.getManagementEndpoint());
+        putString(hasher, data.getActiveDirectoryEndpoint());
+        putString(hasher, data.getResourceManagerEndpoint());
+        putString(hasher, data.getGraphEndpoint());
+        putString(hasher, data.getIdentityEndpoint());
+        putString(hasher, data.getSubscriptionId());
+        putString(hasher, data.getTenant());
+        putString(hasher, data.getClientId());
+        putString(hasher, data.getClientSecret());
+        byte[] certificateBytes = data.getCertificateBytes();
+        hasher.putInt(certificateBytes == null ? -1 : certificateBytes.length);
+        if (certificateBytes != null) {
+            hasher.putBytes(certificateBytes);
+        }
+        putString(hasher, data.getCertificatePassword());
+        hasher.putInt(data.getMsiPort());
+        return hasher.hash().toString();
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Create the token credentials for the given credential data, as used by the clients of
+     * {@link #getClient(TokenCredentialData, Configurer)}. The tokens they acquire are shared with those clients.
+     */
+    @Nonnull
+    @SuppressWarnings("deprecation") // the MSI credentials are deprecated but still supported
+    public static AzureTokenCredentials createCredentials(TokenCredentialData data) {
+        AzureEnvironment env = createAzureEnvironment(data);
+        if (data.getType() == TokenCredentialData.TYPE_SP) {
+            byte[] certificateBytes = data.getCertificateBytes();
+            if (certificateBytes == null || certificateBytes.length == 0) {
+                return new CachedApplicationTokenCredentials(
+                        data.getClientId(), data.getTenant(), data.getClientSecret(), env);
+            }
+            return new CachedApplicationTokenCredentials(
+                    data.getClientId(), data.getTenant(), certificateBytes, data.getCertificatePassword(), env);
+        } else if (data.getType() == TokenCredentialData.TYPE_MSI) {
+            return new RemoteMsiTokenCredentials(data.getMsiPort(), env);
+        } else if (data.getType() == TokenCredentialData.TYPE_IMDS) {
+            return StringUtils.isBlank(data.getIdentityEndpoint())
+                    ? new RemoteImdsTokenCredentials(env)
+                    : new ImdsTokenCredentials(env, data.getIdentityEndpoint());
+        } else {
+            throw new UnsupportedOperationException("Unknown data type: " + data.getType());
+        }
+    }
+
+    @Nonnull
+    private static Azure createClient(TokenCredentialData data, Configurer configurer) {
         AzureEnvironment env = createAzureEnvironment(data);
         if (data.getType() == TokenCredentialData.TYPE_SP) {
             byte[] certificateBytes = data.getCertificateBytes();
@@ -98,7 +244,7 @@ public final class AzureClientFactory {
         } else if (data.getType() == TokenCredentialData.TYPE_MSI) {
             return getClient(data.getMsiPort(), env, configurer);
         } else if (data.getType() == TokenCredentialData.TYPE_IMDS) {
-            return getImdsClient(env, configurer, data.getSubscriptionId());
+            return getImdsClient(env, configurer, data.getSubscriptionId(), data.getIdentityEndpoint());
         } else {
             throw new UnsupportedOperationException("Unknown data type: " + data.getType());
         }
@@ -121,7 +267,7 @@ public final class AzureClientFactory {
                                   final String subscriptionId,
                                   final AzureEnvironment env,
                                   final Configurer configurer) {
-        ApplicationTokenCredentials token = new ApplicationTokenCredentials(
+        ApplicationTokenCredentials token = new CachedApplicationTokenCredentials(
                 clientId,
                 tenantId,
                 certificateBytes,
@@ -140,7 +286,7 @@ public final class AzureClientFactory {
                                   final AzureEnvironment env,
                                   final Configurer configurer) {
 
-        ApplicationTokenCredentials token = new ApplicationTokenCredentials(
+        ApplicationTokenCredentials token = new CachedApplicationTokenCredentials(
                 clientId,
                 tenantId,
                 secret,
@@ -162,9 +308,7 @@ public final class AzureClientFactory {
     public static Azure getClient(final int msiPort, final AzureEnvironment env, final Configurer configurer) {
         MsiTokenCredentials msiToken = new RemoteMsiTokenCredentials(msiPort, env);
         try {
-            return azure(configurer)
-                    .authenticate(msiToken)
-                    .withDefaultSubscription();
+            return withDefaultSubscription(azure(configurer).authenticate(msiToken), "msi:" + msiPort, env);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -179,7 +323,21 @@ public final class AzureClientFactory {
 
     @Nonnull
     public static Azure getImdsClient(final AzureEnvironment env, final Configurer configurer, String subscriptionId) {
-        ImdsTokenCredentials imdsToken = new RemoteImdsTokenCredentials(env);
+        return getImdsClient(env, configurer, subscriptionId, null);
+    }
+
+    /**
+     * Create a client authenticated with the managed identity of the VM.
+     * <p>
+     * With the default endpoint the tokens are requested through the controller. A custom endpoint, such as a local
+     * stand-in of the instance metadata service, is requested directly from the current JVM.
+     */
+    @Nonnull
+    public static Azure getImdsClient(final AzureEnvironment env, final Configurer configurer, String subscriptionId,
+                                      String identityEndpoint) {
+        ImdsTokenCredentials imdsToken = StringUtils.isBlank(identityEndpoint)
+                ? new RemoteImdsTokenCredentials(env)
+                : new ImdsTokenCredentials(env, identityEndpoint);
         try {
             if (StringUtils.isNotBlank(subscriptionId)) {
                 return azure(configurer)
@@ -187,9 +345,8 @@ public final class AzureClientFactory {
                         .withSubscription(subscriptionId);
             }
 
-            return azure(configurer)
-                    .authenticate(imdsToken)
-                    .withDefaultSubscription();
+            return withDefaultSubscription(azure(configurer).authenticate(imdsToken),
+                    "imds:" + imdsToken.getEndpoint(), env);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -204,16 +361,89 @@ public final class AzureClientFactory {
     public static Azure getClient(final AzureEnvironment env, final Configurer configurer) {
         ImdsTokenCredentials imdsToken = new RemoteImdsTokenCredentials(env);
         try {
-            return azure(configurer)
-                    .authenticate(imdsToken)
-                    .withDefaultSubscription();
+            return withDefaultSubscription(azure(configurer).authenticate(imdsToken),
+                    "imds:" + imdsToken.getEndpoint(), env);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Bind the client to the default subscription of the identity. The subscription is resolved by listing the
+     * subscriptions once, then served from a cache for the following clients of the same identity and environment.
+     */
+    private static Azure withDefaultSubscription(Azure.Authenticated authenticated, String identity,
+                                                 AzureEnvironment env) throws IOException {
+        String key = identity + "|" + (env == null ? null : env.resourceManagerEndpoint());
+        String subscriptionId = DEFAULT_SUBSCRIPTIONS.getIfPresent(key);
+        if (subscriptionId != null) {
+            return authenticated.withSubscription(subscriptionId);
+        }
+        Azure azure = authenticated.withDefaultSubscription();
+        if (azure.subscriptionId() != null) {
+            DEFAULT_SUBSCRIPTIONS.put(key, azure.subscriptionId());
+        }
+        return azure;
+    }
+
+    /**
+     * Create a configurer that adds the given interceptors to the HTTP pipeline of the client. Configurers created
+     * with the same interceptors are equal, so that the clients built with them are cached.
+     *
+     * @param interceptors the interceptors to add, for example a {@code TokenRefreshInterceptor}.
+     * @return the configurer.
+     */
+    public static Configurer withInterceptors(final Interceptor... interceptors) {
+        return new InterceptorsConfigurer(interceptors);
+    }
+
+    /**
+     * Create a configurer that applies the given configurers in order, skipping the {@code null} ones. Configurers
+     * composed of equal configurers are equal.
+     *
+     * @param configurers the configurers to apply.
+     * @return the composed configurer.
+     */
+    public static Configurer compose(final Configurer... configurers) {
+        return new CompositeConfigurer(configurers);
+    }
+
+    /**
+     * Whether configurers created separately can be equal, so that a client built with the configurer may be found in
+     * the cache again.
+     */
+    static boolean hasValueEquality(Object value) {
+        if (value == null) {
+            return true;
+        } else if (value instanceof InterceptorsConfigurer) {
+            return allHaveValueEquality(((InterceptorsConfigurer) value).interceptors);
+        } else if (value instanceof CompositeConfigurer) {
+            return allHaveValueEquality(((CompositeConfigurer) value).configurers);
+        }
+        try {
+            return value.getClass().getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean allHaveValueEquality(Object[] values) {
+        for (Object value : values) {
+            if (!hasValueEquality(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static Azure.Configurable azure(Configurer configurer) {
-        Azure.Configurable azure = Azure.configure();
+        Azure.Configurable azure = SharedHttpPool.apply(Azure.configure());
+        if (RequestCoalescer.isEnabled()) {
+            azure = azure.withInterceptor(new RequestCoalescer());
+        }
+        if (ArmThrottlingGovernor.isEnabled()) {
+            azure = azure.withInterceptor(ArmThrottlingGovernor.get());
+        }
         return configurer == null ? azure : configurer.configure(azure);
     }
 
@@ -223,4 +453,89 @@ public final class AzureClientFactory {
     public interface Configurer {
         Azure.Configurable configure(Azure.Configurable configurable);
     }
+
+    private static final class InterceptorsConfigurer implements Configurer {
+        private final Interceptor[] interceptors;
+
+        InterceptorsConfigurer(Interceptor[] interceptors) {
+            this.interceptors = interceptors.clone();
+        }
+
+        @Override
+        public Azure.Configurable configure(Azure.Configurable configurable) {
+            Azure.Configurable result = configurable;
+            for (Interceptor interceptor : interceptors) {
+                result = result.withInterceptor(interceptor);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof InterceptorsConfigurer
+                    && Arrays.equals(interceptors, ((InterceptorsConfigurer) o).interceptors);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(interceptors);
+        }
+    }
+
+    private static final class CompositeConfigurer implements Configurer {
+        private final Configurer[] configurers;
+
+        CompositeConfigurer(Configurer[] configurers) {
+            this.configurers = configurers.clone();
+        }
+
+        @Override
+        public Azure.Configurable configure(Azure.Configurable configurable) {
+            Azure.Configurable result = configurable;
+            for (Configurer configurer : configurers) {
+                if (configurer != null) {
+                    result = configurer.configure(result);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CompositeConfigurer
+                    && Arrays.equals(configurers, ((CompositeConfigurer) o).configurers);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(configurers);
+        }
+    }
+
+    private static final class ClientKey {
+        private final String fingerprint;
+        private final Configurer configurer;
+
+        ClientKey(String fingerprint, Configurer configurer) {
+            this.fingerprint = fingerprint;
+            this.configurer = configurer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+            ClientKey that = (ClientKey) o;
+            return fingerprint.equals(that.fingerprint) && Objects.equals(configurer, that.configurer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fingerprint, configurer);
+        }
+    }
 }
@@ -1,53 +1,111 @@
 package com.microsoft.jenkins.azurecommons.core;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.microsoft.azure.AzureEnvironment;
 import org.apache.commons.lang.StringUtils;
 
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public final class AzureEnvUtil {
-    static boolean resolveOverride(
-            AzureEnvironment environment, AzureEnvironment.Endpoint endpoint, String stored) {
-        if (StringUtils.isBlank(stored)) {
-            return false;
+    private static final AzureEnvironment.Endpoint[] OVERRIDABLE_ENDPOINTS = {
+            AzureEnvironment.Endpoint.MANAGEMENT,
+            AzureEnvironment.Endpoint.ACTIVE_DIRECTORY,
+            AzureEnvironment.Endpoint.RESOURCE_MANAGER,
+            AzureEnvironment.Endpoint.GRAPH,
+    };
+
+    static final long RESOLVED_CACHE_SIZE = Long.getLong(AzureEnvUtil.class.getName() + ".resolvedCacheSize", 100);
+
+    /**
+     * The endpoints of the resolved environments by the known environment and the effective endpoint overrides.
+     */
+    private static final Cache<List<Object>, Map<String, String>> RESOLVED = CacheBuilder.newBuilder()
+            .maximumSize(RESOLVED_CACHE_SIZE)
+            .build();
+
+    static boolean isOverridden(String defaultURL, String overrideURL) {
+        return StringUtils.isNotBlank(overrideURL)
+                && !stripTrailingSlashes(defaultURL).equalsIgnoreCase(stripTrailingSlashes(overrideURL));
+    }
+
+    static String stripTrailingSlashes(String url) {
+        int end = url.length();
+        while (end > 0 && url.charAt(end - 1) == '/') {
+            --end;
         }
-        String defaultValue = environment.endpoints().get(endpoint.identifier());
-        if (StringUtils.isBlank(defaultValue)) {
-            // should not happen
-            environment.endpoints().put(endpoint.identifier(), stored);
-            return true;
+        return url.substring(0, end);
+    }
+
+    static AzureEnvironment resolveAzureEnv(String envName) {
+        // The AzureEnvironment#endpoints() method is exposing the internal endpoint map, which means the call site
+        // may change the details of the built-in known environments.
+        // The ideal fix should be applied in Azure SDK. Here we make a copy so that other plugins that calls this
+        // method won't modify the known environments by accident.
+        return new AzureEnvironment(new HashMap<>(knownAzureEnv(envName).endpoints()));
+    }
+
+    /**
+     * Resolve the environment with the given endpoint overrides. Blank overrides and the ones equal to the default
+     * endpoint are ignored.
+     * <p>
+     * The resolved endpoints are cached, each call returns an environment with its own copy of them.
+     */
+    static AzureEnvironment resolveAzureEnv(String envName, String managementEndpoint, String activeDirectoryEndpoint,
+                                            String resourceManagerEndpoint, String graphEndpoint) {
+        AzureEnvironment known = knownAzureEnv(envName);
+        String[] overrides = {managementEndpoint, activeDirectoryEndpoint, resourceManagerEndpoint, graphEndpoint};
+        List<Object> key = new ArrayList<>(OVERRIDABLE_ENDPOINTS.length + 1);
+        key.add(known);
+        for (int i = 0; i < OVERRIDABLE_ENDPOINTS.length; ++i) {
+            key.add(effectiveOverride(known, OVERRIDABLE_ENDPOINTS[i], overrides[i]));
         }
-        if (isOverridden(defaultValue, stored)) {
-            environment.endpoints().put(endpoint.identifier(), stored);
-            return true;
+        Map<String, String> resolved = RESOLVED.getIfPresent(key);
+        if (resolved == null) {
+            Map<String, String> endpoints = new HashMap<>(known.endpoints());
+            for (int i = 0; i < OVERRIDABLE_ENDPOINTS.length; ++i) {
+                String override = (String) key.get(i + 1);
+                if (override != null) {
+                    endpoints.put(OVERRIDABLE_ENDPOINTS[i].identifier(), override);
+                }
+            }
+            resolved = Collections.unmodifiableMap(endpoints);
+            RESOLVED.put(key, resolved);
         }
-        return false;
+        // the callers may modify the endpoints of the environment, see resolveAzureEnv(String)
+        return new AzureEnvironment(new HashMap<>(resolved));
     }
 
-    static boolean isOverridden(String defaultURL, String overrideURL) {
-        return StringUtils.isNotBlank(overrideURL)
-                && !defaultURL.replaceAll("/+$", "").equalsIgnoreCase(overrideURL.replaceAll("/+$", ""));
+    @CheckForNull
+    private static String effectiveOverride(
+            AzureEnvironment environment, AzureEnvironment.Endpoint endpoint, String stored) {
+        if (StringUtils.isBlank(stored)) {
+            return null;
+        }
+        String defaultValue = environment.endpoints().get(endpoint.identifier());
+        if (StringUtils.isBlank(defaultValue) || isOverridden(defaultValue, stored)) {
+            return stored;
+        }
+        return null;
     }
 
-    static AzureEnvironment resolveAzureEnv(String envName) {
-        AzureEnvironment env;
+    private static AzureEnvironment knownAzureEnv(String envName) {
         if (Constants.ENV_AZURE.equalsIgnoreCase(envName)) {
-            env = AzureEnvironment.AZURE;
+            return AzureEnvironment.AZURE;
         } else if (Constants.ENV_AZURE_CHINA.equalsIgnoreCase(envName)) {
-            env = AzureEnvironment.AZURE_CHINA;
+            return AzureEnvironment.AZURE_CHINA;
         } else if (Constants.ENV_AZURE_GERMANY.equalsIgnoreCase(envName)) {
-            env = AzureEnvironment.AZURE_GERMANY;
+            return AzureEnvironment.AZURE_GERMANY;
         } else if (Constants.ENV_AZURE_US_GOVERNMENT.equalsIgnoreCase(envName)) {
-            env = AzureEnvironment.AZURE_US_GOVERNMENT;
+            return AzureEnvironment.AZURE_US_GOVERNMENT;
         } else {
-            env = AzureEnvironment.AZURE;
+            return AzureEnvironment.AZURE;
         }
-
-        // The AzureEnvironment#endpoints() method is exposing the internal endpoint map, which means the call site
-        // may change the details of the built-in known environments.
-        // The ideal fix should be applied in Azure SDK. Here we make a copy so that other plugins that calls this
-        // method won't modify the known environments by accident.
-        return new AzureEnvironment(new HashMap<>(env.endpoints()));
     }
 
     public static class Constants {
@@ -7,6 +7,7 @@
 package com.microsoft.jenkins.azurecommons.core.credentials;
 
 import com.auth0.jwt.JWT;
+import com.auth0.jwt.exceptions.JWTDecodeException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.DeserializationFeature;
@@ -14,15 +15,61 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.AzureEnvironment;
 import com.microsoft.azure.credentials.AzureTokenCredentials;
 
+import javax.annotation.CheckForNull;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class AbstractTokenCredentials extends AzureTokenCredentials {
+    private static final Logger LOGGER = Logger.getLogger(AbstractTokenCredentials.class.getName());
+
+    /**
+     * Cached tokens that expire within this window are renewed in the background while the callers keep using the
+     * cached token. Set to 0 to disable the refresh-ahead.
+     */
+    static final long REFRESH_AHEAD_SECONDS =
+            Long.getLong(AbstractTokenCredentials.class.getName() + ".refreshAheadSeconds", 300);
+
+    /**
+     * Tokens are considered expired this long before their actual expiry, so that they don't expire in flight.
+     */
+    static final long EXPIRY_SKEW_SECONDS =
+            Long.getLong(AbstractTokenCredentials.class.getName() + ".expirySkewSeconds", 60);
+
+    /**
+     * Random extra skew of up to this many seconds added to each token, so that the tokens acquired together are not
+     * all renewed at the same instant.
+     */
+    static final long EXPIRY_JITTER_SECONDS =
+            Long.getLong(AbstractTokenCredentials.class.getName() + ".expiryJitterSeconds", 30);
+
+    /**
+     * The token acquisitions in progress, so that the concurrent requests for the same resource share one fetch.
+     */
+    private final ConcurrentMap<String, CompletableFuture<Token>> inFlight = new ConcurrentHashMap<>();
+
     private final ObjectMapper mapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
-    private Map<String, Token> tokens;
+    private volatile Map<String, Token> tokens = new ConcurrentHashMap<>();
 
     private volatile String tenantId;
 
@@ -47,25 +94,291 @@ public abstract class AbstractTokenCredentials extends AzureTokenCredentials {
         } else if (token.getAccessToken() == null || token.getAccessToken().equals("")) {
             throw new RuntimeException("The access token isn't included in the response.");
         } else {
-            if (tenantId == null || tenantId.equals("")) {
-                String rawJwt = token.getAccessToken();
-                DecodedJWT jwt = JWT.decode(rawJwt);
-                this.tenantId = jwt.getClaim("tid").asString();
-            }
+            rememberTenant(token);
             return token;
         }
     }
 
+    private void rememberTenant(Token token) {
+        if (tenantId == null || tenantId.equals("")) {
+            String rawJwt = token.getAccessToken();
+            DecodedJWT jwt = JWT.decode(rawJwt);
+            this.tenantId = jwt.getClaim("tid").asString();
+        }
+    }
+
     @Override
-    public synchronized String getToken(final String resource) throws IOException {
+    public String getToken(final String resource) throws IOException {
         Token authenticationResult = tokens.get(resource);
         if (authenticationResult == null || authenticationResult.isExpired()) {
-            authenticationResult = acquireAccessToken(resource);
-            tokens.put(resource, authenticationResult);
+            authenticationResult = await(fetchTokenAsync(resource));
+        } else if (authenticationResult.isExpiringWithin(REFRESH_AHEAD_SECONDS)) {
+            refreshInBackground(resource);
         }
         return authenticationResult.getAccessToken();
     }
 
+    /**
+     * Get the access token for the resource without blocking the calling thread. A cached token is returned as a
+     * completed future, otherwise the token is acquired on a bounded executor shared by all the credentials.
+     *
+     * @param resource the resource the token is issued for.
+     * @return the future access token, completed exceptionally if the token cannot be acquired.
+     */
+    public CompletableFuture<String> getTokenAsync(final String resource) {
+        Token token = tokens.get(resource);
+        if (token != null && !token.isExpired()) {
+            if (token.isExpiringWithin(REFRESH_AHEAD_SECONDS)) {
+                refreshInBackground(resource);
+            }
+            return CompletableFuture.completedFuture(token.getAccessToken());
+        }
+        return fetchTokenAsync(resource).thenApply(new Function<Token, String>() {
+            @Override
+            public String apply(Token acquired) {
+                return acquired.getAccessToken();
+            }
+        });
+    }
+
+    private CompletableFuture<Token> fetchTokenAsync(final String resource) {
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        CompletableFuture<Token> existing = inFlight.putIfAbsent(resource, future);
+        if (existing != null) {
+            return existing;
+        }
+        Token token = tokens.get(resource);
+        if (token != null && !token.isExpired()) {
+            // acquired by the caller that released the slot just before we claimed it
+            inFlight.remove(resource, future);
+            future.complete(token);
+            return future;
+        }
+        publish(resource, future, acquireAsync(resource, false, TokenExecutors.fetcher()));
+        return future;
+    }
+
+    private void refreshInBackground(final String resource) {
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(resource, future) != null) {
+            return;
+        }
+        publish(resource, future, acquireAsync(resource, true, TokenExecutors.refresher()));
+        future.whenComplete(new BiConsumer<Token, Throwable>() {
+            @Override
+            public void accept(Token token, Throwable error) {
+                if (error != null) {
+                    LOGGER.log(Level.FINE, "Failed to refresh the token for " + resource
+                            + ", it will be acquired again once expired", error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Publish the result of the acquisition claimed for the resource to the local cache and to the callers waiting on
+     * the same resource.
+     */
+    private void publish(final String resource, final CompletableFuture<Token> future,
+                         CompletableFuture<Token> acquisition) {
+        acquisition.whenComplete(new BiConsumer<Token, Throwable>() {
+            @Override
+            public void accept(Token token, Throwable error) {
+                if (error == null) {
+                    tokens.put(resource, token);
+                    TokenCache.get().clearRevocation(token.getAccessToken());
+                }
+                inFlight.remove(resource, future);
+                if (error == null) {
+                    future.complete(token);
+                } else {
+                    future.completeExceptionally(unwrap(error));
+                }
+            }
+        });
+    }
+
+    /**
+     * Drop the cached token of the resource, for example after it has been rejected by the service. The token is
+     * revoked in the whole JVM through {@link TokenCache#revoke(String)} and the next {@link #getToken(String)}
+     * acquires it again.
+     *
+     * @param resource the resource of the token to invalidate.
+     */
+    public void invalidateToken(String resource) {
+        Token token = tokens.remove(resource);
+        if (token != null && token.getAccessToken() != null) {
+            TokenCache.get().revoke(token.getAccessToken());
+        }
+        TokenCache.Key key = getCacheKey(resource);
+        if (key != null) {
+            TokenCache.get().invalidate(key);
+        }
+    }
+
+    /**
+     * Acquire the tokens of several resources ahead of their use, so that the following {@link #getToken(String)}
+     * calls are served from the cache. Resources that already have a valid token are skipped, and the others are
+     * acquired together through {@link #acquireAccessTokens(Collection)}.
+     *
+     * @param resources the resources to acquire the tokens for.
+     * @throws IOException if the tokens cannot be acquired.
+     */
+    public void prefetch(String... resources) throws IOException {
+        Set<String> missing = new LinkedHashSet<>();
+        for (String resource : resources) {
+            Token token = tokens.get(resource);
+            if (token == null || token.isExpired()) {
+                TokenCache.Key key = getCacheKey(resource);
+                Token shared = key == null ? null : TokenCache.get().getIfValid(key);
+                if (shared == null) {
+                    missing.add(resource);
+                } else {
+                    rememberTenant(shared);
+                    tokens.put(resource, shared);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        } else if (missing.size() == 1) {
+            getToken(missing.iterator().next());
+            return;
+        }
+        Map<String, Token> acquired = acquireAccessTokens(missing);
+        for (Map.Entry<String, Token> entry : acquired.entrySet()) {
+            TokenCache.Key key = getCacheKey(entry.getKey());
+            if (key != null) {
+                TokenCache.get().put(key, entry.getValue());
+            }
+            tokens.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Acquire the tokens for several resources. The default implementation acquires them one after another, the
+     * implementations that go through a remote channel override it to fetch them in one call.
+     * <p>
+     * Resources missing from the result are acquired again on their first use.
+     *
+     * @param resources the resources to acquire the tokens for.
+     * @return the acquired tokens by resource.
+     * @throws IOException if the tokens cannot be acquired.
+     */
+    protected Map<String, Token> acquireAccessTokens(Collection<String> resources) throws IOException {
+        Map<String, Token> result = new HashMap<>();
+        for (String resource : resources) {
+            result.put(resource, acquireAccessToken(resource));
+        }
+        return result;
+    }
+
+    /**
+     * Acquire the token for the resource through the {@link TokenCache} if this credential shares its tokens, so that
+     * the credential instances of the same identity reuse the cached token and the concurrent misses in this JVM share
+     * one acquisition. A forced refresh does not accept a shared token that is about to expire.
+     */
+    private CompletableFuture<Token> acquireAsync(final String resource, boolean force, final Executor executor) {
+        TokenCache.Key key = getCacheKey(resource);
+        if (key == null) {
+            return acquireAccessTokenAsync(resource, executor);
+        }
+        return TokenCache.get().getOrLoadAsync(key, force ? REFRESH_AHEAD_SECONDS : 0, new TokenCache.AsyncLoader() {
+            @Override
+            public CompletableFuture<Token> load() {
+                return acquireAccessTokenAsync(resource, executor);
+            }
+        }).thenApply(new Function<Token, Token>() {
+            @Override
+            public Token apply(Token token) {
+                rememberTenant(token);
+                return token;
+            }
+        });
+    }
+
+    /**
+     * Acquire the token for the resource without blocking the calling thread. The default implementation runs
+     * {@link #acquireAccessToken(String)} on the given executor, implementations with a non-blocking transport can
+     * override it.
+     *
+     * @param resource the resource the token is issued for.
+     * @param executor the bounded executor to run blocking work on.
+     * @return the future token, completed exceptionally if the token cannot be acquired.
+     */
+    protected CompletableFuture<Token> acquireAccessTokenAsync(final String resource, Executor executor) {
+        final CompletableFuture<Token> future = new CompletableFuture<>();
+        Runnable acquisition = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(acquireAccessToken(resource));
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+        try {
+            executor.execute(acquisition);
+        } catch (RejectedExecutionException e) {
+            // the executor is shut down, acquire the token on the calling thread
+            acquisition.run();
+        }
+        return future;
+    }
+
+    /**
+     * The key of the token for the given resource in the process wide {@link TokenCache}.
+     * <p>
+     * Credentials that return a non-null key share their tokens with all the other credential instances of the same
+     * identity in this JVM. By default the tokens are not shared.
+     *
+     * @param resource the resource the token is issued for.
+     * @return the cache key, or {@code null} if the tokens of this credential should not be shared.
+     */
+    @CheckForNull
+    protected TokenCache.Key getCacheKey(String resource) {
+        return null;
+    }
+
+    /**
+     * The authority endpoint used to tell the tokens of different Azure environments apart.
+     */
+    @CheckForNull
+    protected String getAuthorityEndpoint() {
+        AzureEnvironment environment = environment();
+        return environment == null ? null : environment.activeDirectoryEndpoint();
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the token");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Strip the {@link CompletionException} added by the dependent stages of a {@link CompletableFuture}.
+     */
+    static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
     @Override
     public String domain() {
         return tenantId;
@@ -79,8 +392,16 @@ public abstract class AbstractTokenCredentials extends AzureTokenCredentials {
         return tokens;
     }
 
+    /**
+     * Set the token cache. Maps that are not concurrent are copied into a concurrent one, as the cached tokens are
+     * read without locking.
+     */
     protected void setTokens(Map<String, Token> tokens) {
-        this.tokens = tokens;
+        if (tokens instanceof ConcurrentMap) {
+            this.tokens = tokens;
+        } else {
+            this.tokens = new ConcurrentHashMap<>(tokens);
+        }
     }
 
     public String getTenantId() {
@@ -109,6 +430,9 @@ public abstract class AbstractTokenCredentials extends AzureTokenCredentials {
         @JsonProperty("token_type")
         private String tokenType;
 
+        private final long expirySkew = EXPIRY_SKEW_SECONDS
+                + (EXPIRY_JITTER_SECONDS > 0 ? ThreadLocalRandom.current().nextLong(EXPIRY_JITTER_SECONDS + 1) : 0);
+
         public Token() {
         }
 
@@ -170,9 +494,47 @@ public abstract class AbstractTokenCredentials extends AzureTokenCredentials {
             this.tokenType = tokenType;
         }
 
+        /**
+         * Build a token from a JWT access token, reading its expiry from the {@code exp} claim.
+         *
+         * @param resource    the resource the token is issued for.
+         * @param accessToken the JWT access token.
+         * @return the token, or {@code null} if the access token is not a JWT with an expiry.
+         */
+        @CheckForNull
+        public static Token fromAccessToken(String resource, String accessToken) {
+            try {
+                Date expiresAt = JWT.decode(accessToken).getExpiresAt();
+                if (expiresAt == null) {
+                    return null;
+                }
+                long expiresOn = TimeUnit.MILLISECONDS.toSeconds(expiresAt.getTime());
+                long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+                return new Token(resource, expiresOn - now, expiresOn, accessToken, null, "Bearer");
+            } catch (JWTDecodeException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Whether the token is expired, taking the expiry skew into account, or has been revoked.
+         */
         boolean isExpired() {
             long now = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-            return expiresOn < now;
+            return expiresOn - expirySkew < now || TokenCache.get().isRevoked(accessToken);
+        }
+
+        /**
+         * Whether the token expires within the given window. The window is capped to half of the token lifetime so
+         * that short-lived tokens are not renewed on every access.
+         */
+        boolean isExpiringWithin(long seconds) {
+            long window = expiresIn > 0 ? Math.min(seconds, expiresIn / 2) : seconds;
+            if (window <= 0) {
+                return false;
+            }
+            long now = TimeUnit.SECONDS.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            return expiresOn - expirySkew - window < now;
         }
     }
 }
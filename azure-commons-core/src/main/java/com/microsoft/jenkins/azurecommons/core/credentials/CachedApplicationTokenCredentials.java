@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.credentials.ApplicationTokenCredentials;
+import com.microsoft.jenkins.azurecommons.core.credentials.AbstractTokenCredentials.Token;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Service principal credentials that share the acquired tokens through the {@link TokenCache}.
+ * <p>
+ * The base class keeps its own token cache that cannot be cleared. When it hands out a token that has been revoked
+ * through {@link TokenCache#revoke(String)}, the token is acquired again with a fresh set of credentials.
+ */
+public class CachedApplicationTokenCredentials extends ApplicationTokenCredentials {
+    private final String secret;
+    private final byte[] certificate;
+    private final String certificatePassword;
+    private final String secretHash;
+
+    private volatile ApplicationTokenCredentials delegate;
+
+    /**
+     * Initializes the credentials with a client secret.
+     *
+     * @param clientId    the active directory application client id.
+     * @param domain      the domain or tenant id containing this application.
+     * @param secret      the authentication secret for the application.
+     * @param environment the Azure environment to authenticate with.
+     */
+    public CachedApplicationTokenCredentials(String clientId, String domain, String secret,
+                                             AzureEnvironment environment) {
+        super(clientId, domain, secret, environment);
+        this.secret = secret;
+        this.certificate = null;
+        this.certificatePassword = null;
+        this.secretHash = hash(secret, null, null);
+    }
+
+    /**
+     * Initializes the credentials with a client certificate.
+     *
+     * @param clientId            the active directory application client id.
+     * @param domain              the domain or tenant id containing this application.
+     * @param certificate         the PKCS12 certificate file content.
+     * @param certificatePassword the password to the certificate file.
+     * @param environment         the Azure environment to authenticate with.
+     */
+    public CachedApplicationTokenCredentials(String clientId, String domain, byte[] certificate,
+                                             String certificatePassword, AzureEnvironment environment) {
+        super(clientId, domain, certificate, certificatePassword, environment);
+        this.secret = null;
+        this.certificate = certificate;
+        this.certificatePassword = certificatePassword;
+        this.secretHash = hash(null, certificate, certificatePassword);
+    }
+
+    @Override
+    public String getToken(final String resource) throws IOException {
+        return TokenCache.get().getOrLoad(getCacheKey(resource), 0, new TokenCache.Loader() {
+            @Override
+            public Token load() throws IOException {
+                String accessToken = acquireToken(resource);
+                if (TokenCache.get().isRevoked(accessToken)) {
+                    delegate = newDelegate();
+                    accessToken = acquireToken(resource);
+                }
+                Token token = Token.fromAccessToken(resource, accessToken);
+                if (token == null) {
+                    // not a JWT, without an expiry time it is handed out but not cached
+                    token = new Token(resource, 0, 0, accessToken, null, "Bearer");
+                }
+                return token;
+            }
+        }).getAccessToken();
+    }
+
+    @VisibleForTesting
+    String acquireToken(String resource) throws IOException {
+        ApplicationTokenCredentials current = delegate;
+        return current == null ? super.getToken(resource) : current.getToken(resource);
+    }
+
+    private ApplicationTokenCredentials newDelegate() {
+        AzureEnvironment environment = environment();
+        ApplicationTokenCredentials credentials = certificate == null
+                ? new ApplicationTokenCredentials(clientId(), domain(), secret, environment)
+                : new ApplicationTokenCredentials(clientId(), domain(), certificate, certificatePassword, environment);
+        if (proxy() != null) {
+            credentials.withProxy(proxy());
+        }
+        if (sslSocketFactory() != null) {
+            credentials.withSslSocketFactory(sslSocketFactory());
+        }
+        return credentials;
+    }
+
+    protected TokenCache.Key getCacheKey(String resource) {
+        AzureEnvironment environment = environment();
+        return new TokenCache.Key(TokenCredentialData.TYPE_SP, domain(), clientId(),
+                environment == null ? null : environment.activeDirectoryEndpoint(), resource, secretHash);
+    }
+
+    private static String hash(String secret, byte[] certificate, String certificatePassword) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        putString(hasher, secret);
+        hasher.putInt(certificate == null ? -1 : certificate.length);
+        if (certificate != null) {
+            hasher.putBytes(certificate);
+        }
+        putString(hasher, certificatePassword);
+        return hasher.hash().toString();
+    }
+
+    private static void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -7,17 +7,24 @@
 package com.microsoft.jenkins.azurecommons.core.credentials;
 
 import com.microsoft.azure.AzureEnvironment;
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.logging.HttpLoggingInterceptor;
+import org.apache.commons.lang3.StringUtils;
 
+import javax.annotation.CheckForNull;
 import java.io.IOException;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ImdsTokenCredentials extends AbstractTokenCredentials {
+    static final String DEFAULT_ENDPOINT = "http://169.254.169.254/metadata/identity/oauth2/token";
+
+    /**
+     * The token endpoint of the instance metadata service, can be pointed to a local stand-in for tests.
+     */
+    static final String ENDPOINT =
+            System.getProperty(ImdsTokenCredentials.class.getName() + ".endpoint", DEFAULT_ENDPOINT);
+
+    private final String endpoint;
 
     /**
      * Initializes a new instance of the AzureTokenCredentials.
@@ -25,35 +32,51 @@ public class ImdsTokenCredentials extends AbstractTokenCredentials {
      * @param environment the Azure environment to use
      */
     public ImdsTokenCredentials(AzureEnvironment environment) {
+        this(environment, null);
+    }
+
+    /**
+     * Initializes a new instance of the AzureTokenCredentials.
+     *
+     * @param environment the Azure environment to use
+     * @param endpoint    the token endpoint of the instance metadata service, {@code null} to use the default one
+     */
+    public ImdsTokenCredentials(AzureEnvironment environment, @CheckForNull String endpoint) {
         super(environment, null);
-        setTokens(new HashMap<String, Token>());
+        setTokens(new ConcurrentHashMap<String, Token>());
+        this.endpoint = StringUtils.isBlank(endpoint) ? ENDPOINT : endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
     }
 
     protected Token acquireAccessToken(final String resource) throws IOException {
-        return parseToken(requestIMDSEndpoint(resource));
+        return parseToken(requestIMDSEndpoint(endpoint, resource));
     }
 
-    protected static String requestIMDSEndpoint(final String resource) throws IOException {
-        HttpLoggingInterceptor loggingInterceptor = new HttpLoggingInterceptor();
-        loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BASIC);
+    @Override
+    protected TokenCache.Key getCacheKey(String resource) {
+        return new TokenCache.Key(TokenCredentialData.TYPE_IMDS, null, endpoint, getAuthorityEndpoint(), resource);
+    }
 
-        OkHttpClient client = new OkHttpClient.Builder()
-                .addInterceptor(loggingInterceptor)
-                .build();
+    protected static String requestIMDSEndpoint(final String resource) throws IOException {
+        return requestIMDSEndpoint(ENDPOINT, resource);
+    }
 
-        String parameters = "https://management.azure.com/";
+    protected static String requestIMDSEndpoint(final String endpoint, final String resource) throws IOException {
+        HttpUrl url = HttpUrl.parse(endpoint);
+        if (url == null) {
+            throw new IllegalArgumentException("Invalid IMDS endpoint: " + endpoint);
+        }
         Request request = new Request.Builder()
                 .addHeader("Metadata", "true")
-                .url("http://169.254.169.254/metadata/identity/oauth2/token?"
-                        + "api-version=2018-02-01&resource="
-                        + URLEncoder.encode(parameters, StandardCharsets.UTF_8.toString()))
+                .url(url.newBuilder()
+                        .addQueryParameter("api-version", "2018-02-01")
+                        .addQueryParameter("resource", resource)
+                        .build())
                 .build();
 
-        Response response = client.newCall(request).execute();
-        if (!response.isSuccessful()) {
-            throw new RuntimeException("http response: " + response.code() + " " + response.message());
-        } else {
-            return response.body().string();
-        }
+        return TokenHttpClient.execute(request);
     }
 }
@@ -13,9 +13,17 @@ import jenkins.agents.AgentComputerUtil;
 import org.jenkinsci.remoting.RoleChecker;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Enable retrieving the IMDS token from Jenkins agents.
+ * <p>
+ * The tokens obtained from the controller are kept in the {@link TokenCache} of the agent JVM, keyed by the resource
+ * and the environment, so that the steps and credential instances on the same agent reuse them. Concurrent misses on
+ * the agent share one call over the channel.
  */
 public class RemoteImdsTokenCredentials extends ImdsTokenCredentials {
     /**
@@ -42,6 +50,25 @@ public class RemoteImdsTokenCredentials extends ImdsTokenCredentials {
         return parseToken(responseBody);
     }
 
+    @Override
+    protected Map<String, Token> acquireAccessTokens(Collection<String> resources) throws IOException {
+        VirtualChannel channel = AgentComputerUtil.getChannelToMaster();
+        if (channel == null) {
+            throw new RuntimeException("Failed to get the channel to master. Please check the running environment.");
+        }
+        Map<String, String> responseBodies;
+        try {
+            responseBodies = channel.call(new RequestImdsTokensTask(resources.toArray(new String[0])));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Execution on the master is Interrupted");
+        }
+        Map<String, Token> tokens = new HashMap<>();
+        for (Map.Entry<String, String> entry : responseBodies.entrySet()) {
+            tokens.put(entry.getKey(), parseToken(entry.getValue()));
+        }
+        return tokens;
+    }
+
     public static class RequestImdsTokenTask implements Callable<String, IOException> {
         private final String resource;
 
@@ -51,7 +78,39 @@ public class RemoteImdsTokenCredentials extends ImdsTokenCredentials {
 
         @Override
         public String call() throws IOException {
-            return requestIMDSEndpoint(resource);
+            return TokenBroker.get().requestImds(resource);
+        }
+
+        @Override
+        public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Request the IMDS tokens of several resources in one call, they are resolved concurrently on the controller.
+     */
+    public static class RequestImdsTokensTask implements Callable<HashMap<String, String>, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] resources;
+
+        public RequestImdsTokensTask(String... resources) {
+            this.resources = resources.clone();
+        }
+
+        @Override
+        public HashMap<String, String> call() throws IOException {
+            Map<String, java.util.concurrent.Callable<String>> requests = new LinkedHashMap<>();
+            for (final String resource : resources) {
+                requests.put(resource, new java.util.concurrent.Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return TokenBroker.get().requestImds(resource);
+                    }
+                });
+            }
+            return TokenExecutors.requestAll(requests);
         }
 
         @Override
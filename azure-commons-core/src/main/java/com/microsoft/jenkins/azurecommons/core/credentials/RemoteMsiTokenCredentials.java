@@ -10,6 +10,10 @@ import hudson.slaves.SlaveComputer;
 import org.jenkinsci.remoting.RoleChecker;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Enable retrieving the msi token from Jenkins agents.
@@ -41,6 +45,25 @@ public class RemoteMsiTokenCredentials extends MsiTokenCredentials {
         return parseToken(responseBody);
     }
 
+    @Override
+    protected Map<String, Token> acquireAccessTokens(Collection<String> resources) throws IOException {
+        VirtualChannel channel = SlaveComputer.getChannelToMaster();
+        if (channel == null) {
+            throw new RuntimeException("Failed to get the channel to master. Please check the running environment.");
+        }
+        Map<String, String> responseBodies;
+        try {
+            responseBodies = channel.call(new RequestMsiTokensTask(getMsiPort(), resources.toArray(new String[0])));
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Execution on the master is Interrupted");
+        }
+        Map<String, Token> tokens = new HashMap<>();
+        for (Map.Entry<String, String> entry : responseBodies.entrySet()) {
+            tokens.put(entry.getKey(), parseToken(entry.getValue()));
+        }
+        return tokens;
+    }
+
     public static class RequestMsiTokenTask implements Callable<String, IOException> {
         private final String resource;
         private final int msiPort;
@@ -52,7 +75,41 @@ public class RemoteMsiTokenCredentials extends MsiTokenCredentials {
 
         @Override
         public String call() throws IOException {
-            return requestLocalMsiEndpoint(resource, msiPort);
+            return TokenBroker.get().requestMsi(resource, msiPort);
+        }
+
+        @Override
+        public void checkRoles(RoleChecker roleChecker) throws SecurityException {
+            // Do nothing
+        }
+    }
+
+    /**
+     * Request the MSI tokens of several resources in one call, they are resolved concurrently on the controller.
+     */
+    public static class RequestMsiTokensTask implements Callable<HashMap<String, String>, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final int msiPort;
+        private final String[] resources;
+
+        public RequestMsiTokensTask(int msiPort, String... resources) {
+            this.msiPort = msiPort;
+            this.resources = resources.clone();
+        }
+
+        @Override
+        public HashMap<String, String> call() throws IOException {
+            Map<String, java.util.concurrent.Callable<String>> requests = new LinkedHashMap<>();
+            for (final String resource : resources) {
+                requests.put(resource, new java.util.concurrent.Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return TokenBroker.get().requestMsi(resource, msiPort);
+                    }
+                });
+            }
+            return TokenExecutors.requestAll(requests);
         }
 
         @Override
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import com.microsoft.jenkins.azurecommons.core.credentials.AbstractTokenCredentials.Token;
+import okhttp3.FormBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the token requests the agents send to the controller.
+ * <p>
+ * The instance metadata service throttles the requests from one VM at a low rate, so a burst of agents asking the
+ * controller for tokens at the same time would get 429 responses. The broker:
+ * <ul>
+ * <li>serves the requests from the response of a previous request while the token is not about to expire,</li>
+ * <li>lets the concurrent requests for the same resource share one request to the endpoint,</li>
+ * <li>paces the requests to the endpoint with a rate limiter, and</li>
+ * <li>retries the throttled and failed requests with an exponential backoff that honors {@code Retry-After}.</li>
+ * </ul>
+ */
+public final class TokenBroker {
+    private static final Logger LOGGER = Logger.getLogger(TokenBroker.class.getName());
+
+    private static final String PROPERTY_PREFIX = TokenBroker.class.getName();
+
+    static final double REQUESTS_PER_SECOND =
+            Double.parseDouble(System.getProperty(PROPERTY_PREFIX + ".requestsPerSecond", "5"));
+    static final int MAX_ATTEMPTS = Integer.getInteger(PROPERTY_PREFIX + ".maxAttempts", 4);
+    static final long INITIAL_BACKOFF_MILLIS = Long.getLong(PROPERTY_PREFIX + ".initialBackoffMillis", 1000);
+    static final long MAX_BACKOFF_MILLIS = 30000;
+
+    /**
+     * The host of the local MSI endpoint, can be pointed to a local stand-in for tests. The property keeps the name of
+     * the deprecated credentials that used to request the endpoint.
+     */
+    static final String MSI_HOST = System.getProperty(
+            "com.microsoft.jenkins.azurecommons.core.credentials.MsiTokenCredentials.host", "localhost");
+
+    static final int HTTP_NOT_FOUND = 404;
+    static final int HTTP_GONE = 410;
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+    static final int HTTP_SERVER_ERROR = 500;
+
+    private static final TokenBroker INSTANCE = new TokenBroker(REQUESTS_PER_SECOND, INITIAL_BACKOFF_MILLIS);
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final RateLimiter rateLimiter;
+    private final long initialBackoffMillis;
+
+    private final ConcurrentMap<String, CachedResponse> responses = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong upstreamRequests = new AtomicLong();
+    private final AtomicLong cachedResponses = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+
+    @VisibleForTesting
+    TokenBroker(double requestsPerSecond, long initialBackoffMillis) {
+        this.rateLimiter = RateLimiter.create(requestsPerSecond);
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public static TokenBroker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Request a token from the instance metadata service.
+     *
+     * @param resource the resource the token is issued for.
+     * @return the response body of the token endpoint.
+     * @throws IOException if the token cannot be acquired.
+     */
+    public String requestImds(final String resource) throws IOException {
+        return request("imds|" + resource, new Fetcher() {
+            @Override
+            public String fetch() throws IOException {
+                return ImdsTokenCredentials.requestIMDSEndpoint(resource);
+            }
+        });
+    }
+
+    /**
+     * Request a token from the local MSI endpoint.
+     *
+     * @param resource the resource the token is issued for.
+     * @param msiPort  the port of the MSI endpoint.
+     * @return the response body of the token endpoint.
+     * @throws IOException if the token cannot be acquired.
+     */
+    public String requestMsi(final String resource, final int msiPort) throws IOException {
+        return request("msi:" + msiPort + "|" + resource, new Fetcher() {
+            @Override
+            public String fetch() throws IOException {
+                return requestLocalMsiEndpoint(resource, msiPort);
+            }
+        });
+    }
+
+    static String requestLocalMsiEndpoint(String resource, int msiPort) throws IOException {
+        RequestBody body = new FormBody.Builder()
+                .add("resource", resource)
+                .build();
+        Request request = new Request.Builder()
+                .addHeader("Metadata", "true")
+                .url("http://" + MSI_HOST + ":" + msiPort + "/oauth2/token")
+                .post(body)
+                .build();
+        return TokenHttpClient.execute(request);
+    }
+
+    @VisibleForTesting
+    String request(String key, Fetcher fetcher) throws IOException {
+        CachedResponse cached = responses.get(key);
+        if (cached != null && cached.isFresh()) {
+            cachedResponses.incrementAndGet();
+            return cached.body;
+        }
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedRequests.incrementAndGet();
+            return AbstractTokenCredentials.await(existing);
+        }
+        try {
+            String body = fetchWithBackoff(fetcher);
+            remember(key, body);
+            future.complete(body);
+            return body;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+            if (!future.isDone()) {
+                future.completeExceptionally(new IOException("Failed to request the token for " + key));
+            }
+        }
+    }
+
+    private String fetchWithBackoff(Fetcher fetcher) throws IOException {
+        long backoff = initialBackoffMillis;
+        for (int attempt = 1;; ++attempt) {
+            rateLimiter.acquire();
+            upstreamRequests.incrementAndGet();
+            try {
+                return fetcher.fetch();
+            } catch (TokenHttpClient.HttpStatusException e) {
+                if (attempt >= MAX_ATTEMPTS || !isRetryable(e.getStatusCode())) {
+                    throw e;
+                }
+                long delay = retryAfterMillis(e.getRetryAfter(), backoff);
+                LOGGER.log(Level.FINE, "Token request failed with {0}, retry in {1} ms",
+                        new Object[]{e.getStatusCode(), delay});
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry the token request");
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    private void remember(String key, String body) {
+        Token token;
+        try {
+            token = mapper.readValue(body, Token.class);
+        } catch (IOException e) {
+            return;
+        }
+        if (token != null && token.getAccessToken() != null) {
+            responses.put(key, new CachedResponse(body, token));
+        }
+        responses.values().removeIf(CachedResponse::isExpired);
+    }
+
+    static boolean isRetryable(int statusCode) {
+        return statusCode == HTTP_NOT_FOUND
+                || statusCode == HTTP_GONE
+                || statusCode == HTTP_TOO_MANY_REQUESTS
+                || statusCode >= HTTP_SERVER_ERROR;
+    }
+
+    static long retryAfterMillis(String retryAfter, long defaultMillis) {
+        if (retryAfter != null) {
+            try {
+                long seconds = Long.parseLong(retryAfter.trim());
+                return Math.min(TimeUnit.SECONDS.toMillis(Math.max(seconds, 0)), MAX_BACKOFF_MILLIS);
+            } catch (NumberFormatException e) {
+                // not in delta-seconds, fall back to the backoff
+            }
+        }
+        return defaultMillis;
+    }
+
+    public void clear() {
+        responses.clear();
+    }
+
+    /**
+     * Drop the cached responses holding an access token that has been rejected, so that the next request for it goes
+     * to the token endpoint.
+     *
+     * @param accessToken the rejected access token.
+     */
+    public void evict(final String accessToken) {
+        responses.values().removeIf(response -> accessToken.equals(response.token.getAccessToken()));
+    }
+
+    /**
+     * Number of requests sent to the token endpoints, including the retries.
+     */
+    public long getUpstreamRequestCount() {
+        return upstreamRequests.get();
+    }
+
+    /**
+     * Number of requests served from the response of a previous request.
+     */
+    public long getCachedResponseCount() {
+        return cachedResponses.get();
+    }
+
+    /**
+     * Number of requests that waited for a concurrent request of the same token.
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequests.get();
+    }
+
+    interface Fetcher {
+        String fetch() throws IOException;
+    }
+
+    private static final class CachedResponse {
+        private final String body;
+        private final Token token;
+
+        CachedResponse(String body, Token token) {
+            this.body = body;
+            this.token = token;
+        }
+
+        /**
+         * Whether the token can be handed out without causing a refresh-ahead on the receiving side.
+         */
+        boolean isFresh() {
+            return !token.isExpired() && !token.isExpiringWithin(AbstractTokenCredentials.REFRESH_AHEAD_SECONDS);
+        }
+
+        boolean isExpired() {
+            return token.isExpired();
+        }
+    }
+}
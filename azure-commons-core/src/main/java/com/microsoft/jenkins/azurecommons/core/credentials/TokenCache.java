@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.microsoft.jenkins.azurecommons.core.credentials.AbstractTokenCredentials.Token;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of the access tokens, shared by all the credential instances of the same identity.
+ * <p>
+ * Building a client for a credential creates a new credential object, which would otherwise start with no token and
+ * authenticate again. The tokens are keyed by the credential identity and the resource, and are only returned while
+ * they are not expired. The cache is bounded and the expired tokens are swept before the least recently used valid
+ * ones get evicted.
+ */
+public final class TokenCache {
+    private static final String PROPERTY_PREFIX = TokenCache.class.getName();
+
+    static final long MAX_SIZE = Long.getLong(PROPERTY_PREFIX + ".maxSize", 1000);
+
+    /**
+     * AAD does not issue access tokens that live longer than one day.
+     */
+    static final long MAX_TOKEN_LIFETIME_HOURS = 24;
+
+    private static final TokenCache INSTANCE = new TokenCache(MAX_SIZE);
+
+    private final long maxSize;
+    private final Cache<Key, Token> tokens;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ConcurrentMap<Key, CompletableFuture<Token>> loading = new ConcurrentHashMap<>();
+    private final Cache<String, Boolean> revoked;
+
+    @VisibleForTesting
+    TokenCache(long maxSize) {
+        this.maxSize = maxSize;
+        this.tokens = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(MAX_TOKEN_LIFETIME_HOURS, TimeUnit.HOURS)
+                .recordStats()
+                .build();
+        this.revoked = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(MAX_TOKEN_LIFETIME_HOURS, TimeUnit.HOURS)
+                .build();
+    }
+
+    public static TokenCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the cached token if it is present and not expired.
+     *
+     * @param key the credential identity and resource of the token.
+     * @return the valid token, or {@code null} if there's none.
+     */
+    @CheckForNull
+    public Token getIfValid(Key key) {
+        Token token = tokens.getIfPresent(key);
+        if (token != null && token.isExpired()) {
+            tokens.asMap().remove(key, token);
+            token = null;
+        }
+        if (token == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return token;
+    }
+
+    /**
+     * Get the cached token, or load it if it is missing, expired or expires within the given window. Concurrent loads
+     * of the same key in this JVM share one call to the loader.
+     *
+     * @param key                the credential identity and resource of the token.
+     * @param minValiditySeconds the cached token is reloaded if it expires within this window, 0 to accept any valid
+     *                           token.
+     * @param loader             acquires the token on a cache miss.
+     * @return the cached or loaded token.
+     * @throws IOException if the loader fails to acquire the token.
+     */
+    public Token getOrLoad(Key key, long minValiditySeconds, Loader loader) throws IOException {
+        Token token = getIfValid(key);
+        if (token != null && (minValiditySeconds <= 0 || !token.isExpiringWithin(minValiditySeconds))) {
+            return token;
+        }
+        CompletableFuture<Token> future = new CompletableFuture<>();
+        CompletableFuture<Token> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return AbstractTokenCredentials.await(existing);
+        }
+        try {
+            token = loader.load();
+            put(key, token);
+            future.complete(token);
+            return token;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+            if (!future.isDone()) {
+                future.completeExceptionally(new IOException("Failed to load the token for " + key));
+            }
+        }
+    }
+
+    /**
+     * Get the cached token, or load it asynchronously if it is missing, expired or expires within the given window.
+     * Concurrent loads of the same key in this JVM share one call to the loader.
+     *
+     * @param key                the credential identity and resource of the token.
+     * @param minValiditySeconds the cached token is reloaded if it expires within this window, 0 to accept any valid
+     *                           token.
+     * @param loader             starts the acquisition of the token on a cache miss.
+     * @return the future cached or loaded token.
+     */
+    public CompletableFuture<Token> getOrLoadAsync(final Key key, long minValiditySeconds, AsyncLoader loader) {
+        Token token = getIfValid(key);
+        if (token != null && (minValiditySeconds <= 0 || !token.isExpiringWithin(minValiditySeconds))) {
+            return CompletableFuture.completedFuture(token);
+        }
+        final CompletableFuture<Token> future = new CompletableFuture<>();
+        CompletableFuture<Token> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+        CompletableFuture<Token> loaded;
+        try {
+            loaded = loader.load();
+        } catch (RuntimeException e) {
+            loaded = new CompletableFuture<>();
+            loaded.completeExceptionally(e);
+        }
+        loaded.whenComplete(new BiConsumer<Token, Throwable>() {
+            @Override
+            public void accept(Token result, Throwable error) {
+                if (error == null) {
+                    put(key, result);
+                }
+                loading.remove(key, future);
+                if (error == null) {
+                    future.complete(result);
+                } else {
+                    future.completeExceptionally(AbstractTokenCredentials.unwrap(error));
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Cache the token. A token without an expiry time, such as an access token that is not a JWT, is not cached: it
+     * could never be told valid.
+     */
+    public void put(Key key, Token token) {
+        if (token.getExpiresOn() <= 0) {
+            return;
+        }
+        if (tokens.size() >= maxSize) {
+            sweepExpired();
+        }
+        tokens.put(key, token);
+        clearRevocation(token.getAccessToken());
+    }
+
+    /**
+     * Revoke an access token that has been rejected by a service, so that it is acquired again once.
+     * <p>
+     * The token is dropped from the cache and the {@link Token} instances holding it are treated as expired until a
+     * token is acquired again, even if the token endpoint hands out the same one. The tokens of the instance metadata
+     * service and of the MSI endpoint are not revoked, as these endpoints would return the same token: the next
+     * acquisition only skips the response cached by the {@link TokenBroker}.
+     *
+     * @param accessToken the rejected access token.
+     */
+    public void revoke(final String accessToken) {
+        boolean brokered = false;
+        Iterator<Map.Entry<Key, Token>> it = tokens.asMap().entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Token> entry = it.next();
+            if (accessToken.equals(entry.getValue().getAccessToken())) {
+                int type = entry.getKey().getType();
+                brokered |= type == TokenCredentialData.TYPE_IMDS || type == TokenCredentialData.TYPE_MSI;
+                it.remove();
+            }
+        }
+        if (brokered) {
+            TokenBroker.get().evict(accessToken);
+        } else {
+            revoked.put(accessToken, Boolean.TRUE);
+        }
+    }
+
+    public boolean isRevoked(String accessToken) {
+        return accessToken != null && revoked.size() > 0 && revoked.getIfPresent(accessToken) != null;
+    }
+
+    /**
+     * Forget the revocation of an access token that has been acquired again.
+     */
+    void clearRevocation(String accessToken) {
+        if (accessToken != null && revoked.size() > 0) {
+            revoked.invalidate(accessToken);
+        }
+    }
+
+    public void invalidate(Key key) {
+        tokens.invalidate(key);
+    }
+
+    /**
+     * Drop the tokens acquired with the secret of the given service principal, for example after its credentials
+     * have been updated or removed. The tokens of the managed identities do not depend on the credentials, they are
+     * kept.
+     */
+    public void invalidate(TokenCredentialData data) {
+        if (data.getType() != TokenCredentialData.TYPE_SP) {
+            return;
+        }
+        final String tenant = data.getTenant();
+        final String clientId = data.getClientId();
+        tokens.asMap().keySet().removeIf(key -> key.getType() == TokenCredentialData.TYPE_SP
+                && Objects.equals(key.getTenant(), tenant) && Objects.equals(key.getIdentity(), clientId));
+    }
+
+    public void invalidateAll() {
+        tokens.invalidateAll();
+        revoked.invalidateAll();
+    }
+
+    /**
+     * Remove the expired tokens from the cache.
+     */
+    public void sweepExpired() {
+        tokens.asMap().values().removeIf(Token::isExpired);
+    }
+
+    public long size() {
+        return tokens.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return tokens.stats().evictionCount();
+    }
+
+    /**
+     * Acquires a token on a cache miss.
+     */
+    public interface Loader {
+        Token load() throws IOException;
+    }
+
+    /**
+     * Starts the acquisition of a token on a cache miss, without blocking the calling thread.
+     */
+    public interface AsyncLoader {
+        CompletableFuture<Token> load();
+    }
+
+    /**
+     * Identity of a cached token.
+     * <p>
+     * The key never contains the credential secrets, only the identifiers of the principal and a hash of its secret,
+     * so that a rotated or mistyped secret does not get the tokens acquired with another one.
+     */
+    public static final class Key {
+        private final int type;
+        private final String tenant;
+        private final String identity;
+        private final String environment;
+        private final String resource;
+        private final String secretHash;
+
+        /**
+         * Create a cache key.
+         *
+         * @param type        the credential type, one of the {@code TYPE_*} constants of {@link TokenCredentialData}.
+         * @param tenant      the tenant of the principal, if known.
+         * @param identity    the client ID or the identity of the principal.
+         * @param environment the authority endpoint of the Azure environment.
+         * @param resource    the resource the token is issued for.
+         */
+        public Key(int type, String tenant, String identity, String environment, String resource) {
+            this(type, tenant, identity, environment, resource, null);
+        }
+
+        /**
+         * Create a cache key for a principal authenticating with a secret.
+         *
+         * @param type        the credential type, one of the {@code TYPE_*} constants of {@link TokenCredentialData}.
+         * @param tenant      the tenant of the principal, if known.
+         * @param identity    the client ID or the identity of the principal.
+         * @param environment the authority endpoint of the Azure environment.
+         * @param resource    the resource the token is issued for.
+         * @param secretHash  a hash of the secret or of the certificate and its password, never the secret itself.
+         */
+        public Key(int type, String tenant, String identity, String environment, String resource,
+                   String secretHash) {
+            this.type = type;
+            this.tenant = tenant;
+            this.identity = identity;
+            this.environment = environment;
+            this.resource = resource;
+            this.secretHash = secretHash;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public String getTenant() {
+            return tenant;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getEnvironment() {
+            return environment;
+        }
+
+        public String getResource() {
+            return resource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return type == that.type
+                    && Objects.equals(tenant, that.tenant)
+                    && Objects.equals(identity, that.identity)
+                    && Objects.equals(environment, that.environment)
+                    && Objects.equals(resource, that.resource)
+                    && Objects.equals(secretHash, that.secretHash);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, tenant, identity, environment, resource, secretHash);
+        }
+
+        @Override
+        public String toString() {
+            return "Key{type=" + type + ", tenant=" + tenant + ", identity=" + identity
+                    + ", environment=" + environment + ", resource=" + resource + "}";
+        }
+    }
+}
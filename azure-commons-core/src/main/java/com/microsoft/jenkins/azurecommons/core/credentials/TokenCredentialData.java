@@ -31,6 +31,7 @@ public class TokenCredentialData implements Serializable {
     private String certificatePassword;
     private String tenant;
     private int msiPort;
+    private String identityEndpoint;
 
     public String getAzureEnvironmentName() {
         return azureEnvironmentName;
@@ -135,6 +136,17 @@ public class TokenCredentialData implements Serializable {
         this.msiPort = msiPort;
     }
 
+    /**
+     * The token endpoint of the instance metadata service, {@code null} for the default one.
+     */
+    public String getIdentityEndpoint() {
+        return identityEndpoint;
+    }
+
+    public void setIdentityEndpoint(String identityEndpoint) {
+        this.identityEndpoint = identityEndpoint;
+    }
+
     public int getType() {
         return type;
     }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background executors shared by the {@link AbstractTokenCredentials} implementations.
+ * <p>
+ * The threads are daemon threads and are released when idle. Call {@link #shutdown()} when the owning plugin stops.
+ */
+public final class TokenExecutors {
+    private static final Logger LOGGER = Logger.getLogger(TokenExecutors.class.getName());
+
+    private static final String PROPERTY_PREFIX = TokenExecutors.class.getName();
+
+    static final int REFRESH_THREADS = Integer.getInteger(PROPERTY_PREFIX + ".refreshThreads", 2);
+    static final int FETCH_THREADS = Integer.getInteger(PROPERTY_PREFIX + ".fetchThreads", 4);
+    static final long IDLE_SECONDS = 60;
+
+    private static final Object LOCK = new Object();
+
+    private static ExecutorService refresher;
+
+    private static ExecutorService fetcher;
+
+    /**
+     * Executor used to renew the cached tokens in the background before they expire.
+     */
+    static ExecutorService refresher() {
+        synchronized (LOCK) {
+            if (refresher == null) {
+                refresher = newPool(REFRESH_THREADS, "azure-token-refresh-%d");
+            }
+            return refresher;
+        }
+    }
+
+    /**
+     * Executor used to acquire the tokens missing from the cache, and to serve the batched token requests. The callers
+     * that need a token from credentials without an asynchronous API can acquire it on this executor as well.
+     */
+    public static ExecutorService fetcher() {
+        synchronized (LOCK) {
+            if (fetcher == null) {
+                fetcher = newPool(FETCH_THREADS, "azure-token-fetch-%d");
+            }
+            return fetcher;
+        }
+    }
+
+    /**
+     * Run the given requests concurrently and collect the successful responses by resource.
+     * <p>
+     * This is used on the controller to serve the batched token requests from the agents.
+     *
+     * @param requests the token requests by resource.
+     * @return the response bodies of the requests that succeeded.
+     * @throws IOException if all the requests fail.
+     */
+    static HashMap<String, String> requestAll(Map<String, Callable<String>> requests) throws IOException {
+        Map<String, Future<String>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, Callable<String>> entry : requests.entrySet()) {
+            futures.put(entry.getKey(), fetcher().submit(entry.getValue()));
+        }
+        HashMap<String, String> result = new HashMap<>();
+        IOException failure = null;
+        for (Map.Entry<String, Future<String>> entry : futures.entrySet()) {
+            try {
+                result.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while requesting the tokens");
+            } catch (ExecutionException e) {
+                LOGGER.log(Level.FINE, "Failed to request the token for " + entry.getKey(), e.getCause());
+                failure = new IOException("Failed to request the token for " + entry.getKey(), e.getCause());
+            }
+        }
+        if (result.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    /**
+     * Stop the background executors. Tasks already submitted are allowed to complete.
+     */
+    public static void shutdown() {
+        synchronized (LOCK) {
+            if (refresher != null) {
+                refresher.shutdown();
+                refresher = null;
+            }
+            if (fetcher != null) {
+                fetcher.shutdown();
+                fetcher = null;
+            }
+        }
+    }
+
+    private static ExecutorService newPool(int threads, String nameFormat) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private TokenExecutors() {
+        // hide constructor
+    }
+}
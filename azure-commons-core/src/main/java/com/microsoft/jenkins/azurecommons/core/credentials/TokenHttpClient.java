@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.logging.HttpLoggingInterceptor;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared HTTP transport used to request tokens from the instance metadata service and the local MSI endpoint.
+ * <p>
+ * One {@link OkHttpClient} is lazily created and reused by all the {@link AbstractTokenCredentials} implementations,
+ * so that connections and dispatcher threads are pooled instead of being created for every token request.
+ * The timeouts and the pool size can be tuned with the system properties prefixed by the name of this class.
+ * <p>
+ * Call {@link #shutdown()} when the owning plugin stops. A new client is created on the next request.
+ */
+public final class TokenHttpClient {
+    private static final Logger LOGGER = Logger.getLogger(TokenHttpClient.class.getName());
+
+    private static final String PROPERTY_PREFIX = TokenHttpClient.class.getName();
+
+    static final long CONNECT_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".connectTimeout", 10);
+    static final long READ_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".readTimeout", 30);
+    static final int MAX_IDLE_CONNECTIONS = Integer.getInteger(PROPERTY_PREFIX + ".maxIdleConnections", 5);
+    static final long KEEP_ALIVE_SECONDS = Long.getLong(PROPERTY_PREFIX + ".keepAlive", 300);
+
+    private static final Object LOCK = new Object();
+
+    private static volatile OkHttpClient client;
+
+    /**
+     * Get the shared HTTP client, creating it if it is not yet initialized or has been shut down.
+     *
+     * @return the shared HTTP client for token requests.
+     */
+    public static OkHttpClient get() {
+        OkHttpClient current = client;
+        if (current == null) {
+            synchronized (LOCK) {
+                current = client;
+                if (current == null) {
+                    current = build();
+                    client = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Release the pooled connections and the dispatcher threads of the shared client.
+     */
+    public static void shutdown() {
+        OkHttpClient current;
+        synchronized (LOCK) {
+            current = client;
+            client = null;
+        }
+        if (current != null) {
+            current.dispatcher().executorService().shutdown();
+            current.connectionPool().evictAll();
+        }
+    }
+
+    static String execute(Request request) throws IOException {
+        try (Response response = get().newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new HttpStatusException(response.code(), response.message(), response.header("Retry-After"));
+            }
+            ResponseBody body = response.body();
+            return body == null ? "" : body.string();
+        }
+    }
+
+    private static OkHttpClient build() {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS));
+        if (LOGGER.isLoggable(Level.FINE)) {
+            HttpLoggingInterceptor loggingInterceptor = new HttpLoggingInterceptor(new HttpLoggingInterceptor.Logger() {
+                @Override
+                public void log(String message) {
+                    LOGGER.fine(message);
+                }
+            });
+            loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BASIC);
+            builder.addInterceptor(loggingInterceptor);
+        }
+        return builder.build();
+    }
+
+    private TokenHttpClient() {
+        // hide constructor
+    }
+
+    /**
+     * Thrown when the token endpoint responds with an unsuccessful status code.
+     */
+    public static class HttpStatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+        private final String retryAfter;
+
+        public HttpStatusException(int statusCode, String message, String retryAfter) {
+            super("http response: " + statusCode + " " + message);
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * The value of the {@code Retry-After} response header, if any.
+         */
+        public String getRetryAfter() {
+            return retryAfter;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Revokes the bearer token of a request that is rejected with 401 and replays the request once.
+ * <p>
+ * The interceptor must be added with {@code Azure.Configurable#withInterceptor}, so that it runs outside of the
+ * interceptor that sets the {@code Authorization} header. The replayed request goes through the credentials again,
+ * which acquire the token once more instead of using the cached one. The endpoints that cannot issue a different
+ * token, such as the instance metadata service, may return the same token.
+ */
+public class TokenRefreshInterceptor implements Interceptor {
+    private static final Logger LOGGER = Logger.getLogger(TokenRefreshInterceptor.class.getName());
+
+    static final int HTTP_UNAUTHORIZED = 401;
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Response response = chain.proceed(request);
+        if (response.code() != HTTP_UNAUTHORIZED) {
+            return response;
+        }
+        String accessToken = bearerToken(response.request());
+        if (accessToken == null) {
+            return response;
+        }
+        LOGGER.fine("Request to " + request.url().host() + " was unauthorized, retry with a new token");
+        TokenCache.get().revoke(accessToken);
+        response.close();
+        return chain.proceed(request);
+    }
+
+    /**
+     * The interceptor has no state, all the instances are equal so that the clients configured with them are cached.
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+    static String bearerToken(Request request) {
+        String authorization = request.header("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            return null;
+        }
+        return authorization.substring(BEARER_PREFIX.length()).trim();
+    }
+}
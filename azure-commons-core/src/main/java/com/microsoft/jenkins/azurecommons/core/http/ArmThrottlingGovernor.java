@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces the ARM requests of all the clients built by the
+ * {@link com.microsoft.jenkins.azurecommons.core.AzureClientFactory} so that a subscription shared by many parallel
+ * builds does not run out of its read or write quota.
+ * <p>
+ * Each subscription has a read and a write budget. The budget is set from the
+ * {@code x-ms-ratelimit-remaining-subscription-reads} and {@code -writes} headers of the responses, and decremented
+ * locally for every request sent in between. Once a budget falls below the reserve, the requests of that kind are
+ * paced at the rate the quota refills. After a 429 response, the requests to the subscription wait for the
+ * {@code Retry-After} delay.
+ * <p>
+ * The rates and the reserve can be tuned with the system properties prefixed by the name of this class.
+ */
+public final class ArmThrottlingGovernor implements Interceptor {
+    private static final Logger LOGGER = Logger.getLogger(ArmThrottlingGovernor.class.getName());
+
+    private static final String PROPERTY_PREFIX = ArmThrottlingGovernor.class.getName();
+
+    static final long RESERVE = Long.getLong(PROPERTY_PREFIX + ".reserve", 100);
+    static final double READS_PER_SECOND =
+            Double.parseDouble(System.getProperty(PROPERTY_PREFIX + ".readsPerSecond", "3.3"));
+    static final double WRITES_PER_SECOND =
+            Double.parseDouble(System.getProperty(PROPERTY_PREFIX + ".writesPerSecond", "0.33"));
+    static final long MAX_WAIT_MILLIS = Long.getLong(PROPERTY_PREFIX + ".maxWaitMillis", 60000);
+    static final boolean DISABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".disabled");
+
+    static final String REMAINING_READS_HEADER = "x-ms-ratelimit-remaining-subscription-reads";
+    static final String REMAINING_WRITES_HEADER = "x-ms-ratelimit-remaining-subscription-writes";
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 10;
+
+    private static final ArmThrottlingGovernor INSTANCE =
+            new ArmThrottlingGovernor(RESERVE, READS_PER_SECOND, WRITES_PER_SECOND);
+
+    private final long reserve;
+    private final double readsPerSecond;
+    private final double writesPerSecond;
+
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    private final AtomicLong pacedRequests = new AtomicLong();
+    private final AtomicLong throttledResponses = new AtomicLong();
+
+    @VisibleForTesting
+    ArmThrottlingGovernor(long reserve, double readsPerSecond, double writesPerSecond) {
+        this.reserve = reserve;
+        this.readsPerSecond = readsPerSecond;
+        this.writesPerSecond = writesPerSecond;
+    }
+
+    public static ArmThrottlingGovernor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Whether the governor is installed on the clients built by the factory.
+     */
+    public static boolean isEnabled() {
+        return !DISABLED;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String subscriptionId = subscriptionOf(request.url());
+        if (subscriptionId == null) {
+            return chain.proceed(request);
+        }
+        boolean write = isWrite(request.method());
+        Budget budget = budget(subscriptionId, write);
+        budget.acquire();
+
+        Response response = chain.proceed(request);
+        String remaining = response.header(write ? REMAINING_WRITES_HEADER : REMAINING_READS_HEADER);
+        if (remaining != null) {
+            try {
+                budget.remaining.set(Long.parseLong(remaining.trim()));
+            } catch (NumberFormatException e) {
+                // ignore the malformed header, keep the local estimate
+            }
+        }
+        if (response.code() == HTTP_TOO_MANY_REQUESTS) {
+            throttledResponses.incrementAndGet();
+            long delayMillis = TimeUnit.SECONDS.toMillis(retryAfterSeconds(response.header("Retry-After")));
+            LOGGER.log(Level.FINE, "ARM throttled subscription {0}, holding its requests for {1} ms",
+                    new Object[]{subscriptionId, delayMillis});
+            budget(subscriptionId, false).blockFor(delayMillis);
+            budget(subscriptionId, true).blockFor(delayMillis);
+        }
+        return response;
+    }
+
+    /**
+     * The remaining read or write budget of the subscription, as last reported by ARM and decremented by the
+     * requests sent since.
+     *
+     * @param subscriptionId the subscription.
+     * @param write          whether to get the write budget rather than the read budget.
+     * @return the remaining budget, or -1 if no response has reported it yet.
+     */
+    public long getRemaining(String subscriptionId, boolean write) {
+        Budget budget = budgets.get(budgetKey(subscriptionId, write));
+        return budget == null ? -1 : budget.remaining.get();
+    }
+
+    /**
+     * Number of requests delayed because the budget was low or the subscription was throttled.
+     */
+    public long getPacedCount() {
+        return pacedRequests.get();
+    }
+
+    /**
+     * Number of 429 responses received.
+     */
+    public long getThrottledCount() {
+        return throttledResponses.get();
+    }
+
+    private Budget budget(String subscriptionId, boolean write) {
+        String key = budgetKey(subscriptionId, write);
+        Budget budget = budgets.get(key);
+        if (budget == null) {
+            budget = new Budget(write ? writesPerSecond : readsPerSecond);
+            Budget existing = budgets.putIfAbsent(key, budget);
+            if (existing != null) {
+                budget = existing;
+            }
+        }
+        return budget;
+    }
+
+    private static String budgetKey(String subscriptionId, boolean write) {
+        return subscriptionId.toLowerCase(Locale.ENGLISH) + (write ? "|writes" : "|reads");
+    }
+
+    @CheckForNull
+    static String subscriptionOf(HttpUrl url) {
+        List<String> segments = url.pathSegments();
+        if (segments.size() >= 2 && "subscriptions".equalsIgnoreCase(segments.get(0))
+                && !segments.get(1).isEmpty()) {
+            return segments.get(1);
+        }
+        return null;
+    }
+
+    static boolean isWrite(String method) {
+        return !"GET".equals(method) && !"HEAD".equals(method);
+    }
+
+    static long retryAfterSeconds(@CheckForNull String retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Math.max(Long.parseLong(retryAfter.trim()), 0);
+            } catch (NumberFormatException e) {
+                // not in delta-seconds
+            }
+        }
+        return DEFAULT_RETRY_AFTER_SECONDS;
+    }
+
+    private final class Budget {
+        private final AtomicLong remaining = new AtomicLong(-1);
+        private final AtomicLong blockedUntil = new AtomicLong();
+        private final RateLimiter refill;
+
+        Budget(double permitsPerSecond) {
+            this.refill = RateLimiter.create(permitsPerSecond);
+        }
+
+        void acquire() throws InterruptedIOException {
+            long waitMillis = Math.min(blockedUntil.get() - System.currentTimeMillis(), MAX_WAIT_MILLIS);
+            if (waitMillis > 0) {
+                pacedRequests.incrementAndGet();
+                try {
+                    Thread.sleep(waitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the ARM throttling to end");
+                }
+            }
+            long left = remaining.get();
+            if (left >= 0) {
+                if (left <= reserve) {
+                    pacedRequests.incrementAndGet();
+                    refill.acquire();
+                }
+                // -1 means unknown, an exhausted budget stays at 0 until ARM reports it again
+                remaining.updateAndGet(value -> value < 0 ? value : Math.max(0, value - 1));
+            }
+        }
+
+        void blockFor(long delayMillis) {
+            long until = System.currentTimeMillis() + delayMillis;
+            long current;
+            do {
+                current = blockedUntil.get();
+            } while (until > current && !blockedUntil.compareAndSet(current, until));
+        }
+    }
+}
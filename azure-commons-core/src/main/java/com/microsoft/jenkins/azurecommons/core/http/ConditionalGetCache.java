@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the responses of GET requests that carry an {@code ETag}, and revalidates them with {@code If-None-Match}.
+ * A {@code 304 Not Modified} response is answered with the cached body, which saves the transfer and, for the
+ * services that honor it, the read quota.
+ * <p>
+ * Cached responses are never served without revalidation, so the service still checks the authorization of every
+ * request. The cache is bounded by the total size of the cached bodies. Other requests to a cached URL, such as a
+ * PUT or a DELETE, drop the cached response.
+ * <p>
+ * Install it with {@code AzureClientFactory.withInterceptors(...)}, sharing one instance across the clients of the
+ * same subscription, see {@link #forSubscription(String)}.
+ */
+public class ConditionalGetCache implements Interceptor {
+    private static final String PROPERTY_PREFIX = ConditionalGetCache.class.getName();
+
+    static final long DEFAULT_MAX_BYTES = Long.getLong(PROPERTY_PREFIX + ".maxBytes", 16L * 1024 * 1024);
+    static final long MAX_ENTRY_BYTES = Long.getLong(PROPERTY_PREFIX + ".maxEntryBytes", 1024L * 1024);
+
+    static final int HTTP_OK = 200;
+    static final int HTTP_NOT_MODIFIED = 304;
+
+    private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+    private static final ConcurrentMap<String, ConditionalGetCache> SUBSCRIPTION_CACHES = new ConcurrentHashMap<>();
+
+    private final Cache<String, Entry> entries;
+
+    @CheckForNull
+    private final String subscriptionPrefix;
+
+    private final AtomicLong revalidated = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Create a cache for the GET requests of any subscription.
+     *
+     * @param maxBytes the maximum total size of the cached responses.
+     */
+    public ConditionalGetCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Create a cache for the GET requests of the resources of the given subscription.
+     *
+     * @param maxBytes       the maximum total size of the cached responses.
+     * @param subscriptionId the subscription of the cached resources, {@code null} to cache any GET request.
+     */
+    public ConditionalGetCache(long maxBytes, @CheckForNull String subscriptionId) {
+        this.entries = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<String, Entry>() {
+                    @Override
+                    public int weigh(String key, Entry entry) {
+                        return key.length() + entry.body.length + ENTRY_OVERHEAD_BYTES;
+                    }
+                })
+                .build();
+        this.subscriptionPrefix = subscriptionId == null
+                ? null
+                : "/subscriptions/" + subscriptionId.toLowerCase(Locale.ENGLISH) + "/";
+    }
+
+    /**
+     * The cache shared by all the clients of the given subscription.
+     *
+     * @param subscriptionId the subscription of the cached resources.
+     * @return the shared cache of the subscription.
+     */
+    public static ConditionalGetCache forSubscription(String subscriptionId) {
+        String key = subscriptionId.toLowerCase(Locale.ENGLISH);
+        ConditionalGetCache cache = SUBSCRIPTION_CACHES.get(key);
+        if (cache == null) {
+            cache = new ConditionalGetCache(DEFAULT_MAX_BYTES, subscriptionId);
+            ConditionalGetCache existing = SUBSCRIPTION_CACHES.putIfAbsent(key, cache);
+            if (existing != null) {
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!isInScope(request.url())) {
+            return chain.proceed(request);
+        }
+        String key = request.url().toString();
+        if (!"GET".equals(request.method())) {
+            entries.invalidate(key);
+            return chain.proceed(request);
+        }
+        if (request.header("If-None-Match") != null || "no-cache".equals(request.header("Cache-Control"))) {
+            return chain.proceed(request);
+        }
+
+        Entry cached = entries.getIfPresent(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+            return store(key, chain.proceed(request));
+        }
+        Response response = chain.proceed(request.newBuilder().header("If-None-Match", cached.etag).build());
+        if (response.code() != HTTP_NOT_MODIFIED) {
+            entries.invalidate(key);
+            return store(key, response);
+        }
+        revalidated.incrementAndGet();
+        response.close();
+        return cached.toResponse(response);
+    }
+
+    private Response store(String key, Response response) throws IOException {
+        String etag = response.header("ETag");
+        ResponseBody body = response.body();
+        if (response.code() != HTTP_OK || etag == null || body == null) {
+            return response;
+        }
+        ResponseBody peeked = response.peekBody(MAX_ENTRY_BYTES + 1);
+        if (peeked.contentLength() > MAX_ENTRY_BYTES) {
+            return response;
+        }
+        entries.put(key, new Entry(etag, response.message(), response.headers(), body.contentType(), peeked.bytes()));
+        return response;
+    }
+
+    private boolean isInScope(HttpUrl url) {
+        return subscriptionPrefix == null
+                || url.encodedPath().toLowerCase(Locale.ENGLISH).startsWith(subscriptionPrefix);
+    }
+
+    public void invalidateAll() {
+        entries.invalidateAll();
+    }
+
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of GET requests answered from the cache after a {@code 304 Not Modified}.
+     */
+    public long getRevalidatedCount() {
+        return revalidated.get();
+    }
+
+    /**
+     * Number of GET requests that had no cached response.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+        private final String etag;
+        private final String message;
+        private final Headers headers;
+        private final MediaType contentType;
+        private final byte[] body;
+
+        Entry(String etag, String message, Headers headers, MediaType contentType, byte[] body) {
+            this.etag = etag;
+            this.message = message;
+            this.headers = headers;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        /**
+         * Rebuild the cached response, with the headers of the revalidation response taking precedence. All the values
+         * of a header present in the revalidation response replace the cached ones, so that the headers with several
+         * values such as {@code Set-Cookie} keep all of them.
+         */
+        Response toResponse(Response notModified) {
+            Headers.Builder merged = headers.newBuilder();
+            Headers updated = notModified.headers();
+            for (String name : updated.names()) {
+                merged.removeAll(name);
+                for (String value : updated.values(name)) {
+                    merged.add(name, value);
+                }
+            }
+            merged.set("Content-Length", String.valueOf(body.length));
+            return notModified.newBuilder()
+                    .code(HTTP_OK)
+                    .message(message)
+                    .headers(merged.build())
+                    .body(ResponseBody.create(contentType, body))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.google.common.annotations.VisibleForTesting;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of requests in flight to each host, for the synchronous calls as well as the asynchronous ones.
+ * <p>
+ * The limits of the OkHttp {@link okhttp3.Dispatcher} only apply to the calls it executes asynchronously, while the
+ * Azure SDK executes most of its calls synchronously on the calling thread. A request holds its permit until the
+ * headers of its response are received, the extra requests wait for a permit in arrival order.
+ */
+final class HostConcurrencyLimiter implements Interceptor {
+    private final int maxPerHost;
+
+    private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    HostConcurrencyLimiter(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        HttpUrl url = chain.request().url();
+        Semaphore permits = permits(url.host() + ":" + url.port());
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException error = new InterruptedIOException("Interrupted while waiting for " + url.host());
+            error.initCause(e);
+            throw error;
+        }
+        try {
+            return chain.proceed(chain.request());
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Semaphore permits(String host) {
+        Semaphore permits = hosts.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(maxPerHost, true);
+            permits = hosts.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * Number of requests waiting for a permit, all hosts included.
+     */
+    @VisibleForTesting
+    int getWaitingCount() {
+        int waiting = 0;
+        for (Semaphore permits : hosts.values()) {
+            waiting += permits.getQueueLength();
+        }
+        return waiting;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.google.common.annotations.VisibleForTesting;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets identical GET requests issued concurrently share one response. The first request is sent, the ones issued
+ * while it is in flight wait for it and get a copy of its response.
+ * <p>
+ * The interceptor runs before the credentials add the {@code Authorization} header, so it cannot tell the identities
+ * apart by itself. Use one instance per credentials. The
+ * {@link com.microsoft.jenkins.azurecommons.core.AzureClientFactory} installs one on every client it builds if the
+ * system property {@code com.microsoft.jenkins.azurecommons.core.http.RequestCoalescer.enabled} is set.
+ * <p>
+ * A request that changes a resource stops the later reads of the same URL from joining a read sent before it, so that
+ * the client reads its own writes.
+ * <p>
+ * If the shared request fails, or its response is too large to be copied, the waiting requests are sent on their
+ * own.
+ */
+public class RequestCoalescer implements Interceptor {
+    private static final String PROPERTY_PREFIX = RequestCoalescer.class.getName();
+
+    static final long MAX_SHARED_BYTES = Long.getLong(PROPERTY_PREFIX + ".maxSharedBytes", 4L * 1024 * 1024);
+    static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".enabled");
+
+    private final ConcurrentMap<HttpUrl, CompletableFuture<Snapshot>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!"GET".equals(request.method())) {
+            invalidate(request.url());
+            try {
+                return chain.proceed(request);
+            } finally {
+                invalidate(request.url());
+            }
+        }
+        HttpUrl key = request.url();
+        CompletableFuture<Snapshot> future = new CompletableFuture<>();
+        CompletableFuture<Snapshot> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            Snapshot snapshot;
+            waiting.incrementAndGet();
+            try {
+                snapshot = await(existing);
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (snapshot == null) {
+                return chain.proceed(request);
+            }
+            coalesced.incrementAndGet();
+            return snapshot.toResponse(request);
+        }
+        try {
+            Response response = chain.proceed(request);
+            try {
+                future.complete(Snapshot.of(response));
+            } catch (IOException | RuntimeException e) {
+                response.close();
+                throw e;
+            }
+            return response;
+        } finally {
+            inFlight.remove(key, future);
+            // let the followers send their own request if the shared one failed
+            future.complete(null);
+        }
+    }
+
+    /**
+     * Whether the coalescer is installed on the clients built by the factory.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Stop the following reads of the resource from joining a read already in flight.
+     */
+    private void invalidate(final HttpUrl url) {
+        if (!inFlight.isEmpty()) {
+            inFlight.keySet().removeIf(key -> key.host().equals(url.host()) && key.port() == url.port()
+                    && key.encodedPath().equals(url.encodedPath()));
+        }
+    }
+
+    /**
+     * Number of requests that were answered with the response of a concurrent identical request.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Number of requests currently waiting for a concurrent identical request.
+     */
+    @VisibleForTesting
+    int getWaitingCount() {
+        return waiting.get();
+    }
+
+    @CheckForNull
+    private static Snapshot await(CompletableFuture<Snapshot> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a concurrent identical request");
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static final class Snapshot {
+        private final Protocol protocol;
+        private final int code;
+        private final String message;
+        private final Headers headers;
+        private final MediaType contentType;
+        private final byte[] body;
+
+        private Snapshot(Response response, MediaType contentType, byte[] body) {
+            this.protocol = response.protocol();
+            this.code = response.code();
+            this.message = response.message();
+            this.headers = response.headers();
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        @CheckForNull
+        static Snapshot of(Response response) throws IOException {
+            ResponseBody body = response.body();
+            if (body == null) {
+                return new Snapshot(response, null, new byte[0]);
+            }
+            ResponseBody peeked = response.peekBody(MAX_SHARED_BYTES + 1);
+            if (peeked.contentLength() > MAX_SHARED_BYTES) {
+                return null;
+            }
+            return new Snapshot(response, body.contentType(), peeked.bytes());
+        }
+
+        Response toResponse(Request request) {
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(protocol)
+                    .code(code)
+                    .message(message)
+                    .headers(headers)
+                    .body(ResponseBody.create(contentType, body))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.microsoft.azure.management.resources.fluentcore.arm.AzureConfigurable;
+import com.microsoft.azure.management.resources.fluentcore.arm.implementation.AzureConfigurableImpl;
+import com.microsoft.rest.RestClient;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import javax.annotation.CheckForNull;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The HTTP connection pool and dispatcher shared by all the clients built by the
+ * {@link com.microsoft.jenkins.azurecommons.core.AzureClientFactory}.
+ * <p>
+ * Without it every client keeps its own pool of idle TLS connections to the same management endpoint. The pool size,
+ * the keep-alive, the concurrency per host, the timeouts and HTTP/2 can be tuned with the system properties prefixed
+ * by the name of this class.
+ * <p>
+ * The dispatcher only bounds the asynchronous calls, the requests to each host are also bounded by an interceptor
+ * shared by the clients, as the Azure SDK executes most of its calls synchronously.
+ * <p>
+ * The Azure SDK doesn't expose the underlying {@link RestClient.Builder} of a configurable, it is reached through
+ * reflection. If that fails the clients keep their own pools.
+ */
+public final class SharedHttpPool {
+    private static final Logger LOGGER = Logger.getLogger(SharedHttpPool.class.getName());
+
+    private static final String PROPERTY_PREFIX = SharedHttpPool.class.getName();
+
+    static final int MAX_IDLE_CONNECTIONS = Integer.getInteger(PROPERTY_PREFIX + ".maxIdleConnections", 20);
+    static final long KEEP_ALIVE_SECONDS = Long.getLong(PROPERTY_PREFIX + ".keepAlive", 300);
+    static final int MAX_REQUESTS = Integer.getInteger(PROPERTY_PREFIX + ".maxRequests", 64);
+    static final int MAX_REQUESTS_PER_HOST = Integer.getInteger(PROPERTY_PREFIX + ".maxRequestsPerHost", 16);
+    static final Long CONNECT_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".connectTimeout");
+    static final Long READ_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".readTimeout");
+    static final boolean HTTP2_DISABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".disableHttp2");
+
+    private static final Field REST_CLIENT_BUILDER = findField(AzureConfigurableImpl.class, "restClientBuilder");
+    private static final Field HTTP_CLIENT_BUILDER = findField(RestClient.Builder.class, "httpClientBuilder");
+
+    private static final Object LOCK = new Object();
+
+    private static final HostConcurrencyLimiter LIMITER = new HostConcurrencyLimiter(MAX_REQUESTS_PER_HOST);
+
+    private static ConnectionPool connectionPool;
+
+    private static Dispatcher dispatcher;
+
+    /**
+     * Make the configurable use the shared connection pool, dispatcher and limit of requests per host, and apply the
+     * configured timeouts.
+     *
+     * @param configurable the configurable to update, such as {@code Azure.configure()}.
+     * @param <T>          the type of the configurable.
+     * @return the updated configurable.
+     */
+    public static <T extends AzureConfigurable<T>> T apply(T configurable) {
+        T result = configurable.withInterceptor(LIMITER);
+        if (CONNECT_TIMEOUT_SECONDS != null) {
+            result = result.withConnectionTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        if (READ_TIMEOUT_SECONDS != null) {
+            result = result.withReadTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        RestClient.Builder builder = (RestClient.Builder) read(REST_CLIENT_BUILDER, result);
+        if (builder == null) {
+            return result;
+        }
+        synchronized (LOCK) {
+            builder.withConnectionPool(connectionPool()).withDispatcher(dispatcher());
+        }
+        if (HTTP2_DISABLED) {
+            OkHttpClient.Builder httpClientBuilder = (OkHttpClient.Builder) read(HTTP_CLIENT_BUILDER, builder);
+            if (httpClientBuilder != null) {
+                httpClientBuilder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a plain HTTP client on the shared connection pool, dispatcher and limit of requests per host, for the
+     * requests made outside of the Azure SDK clients.
+     *
+     * @return a new HTTP client sharing the pooled connections.
+     */
+    public static OkHttpClient newClient() {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder().addInterceptor(LIMITER);
+        synchronized (LOCK) {
+            builder.connectionPool(connectionPool()).dispatcher(dispatcher());
+        }
+        if (CONNECT_TIMEOUT_SECONDS != null) {
+            builder.connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        if (READ_TIMEOUT_SECONDS != null) {
+            builder.readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        if (HTTP2_DISABLED) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Number of open connections in the shared pool.
+     */
+    public static int getConnectionCount() {
+        synchronized (LOCK) {
+            return connectionPool == null ? 0 : connectionPool.connectionCount();
+        }
+    }
+
+    /**
+     * Number of idle connections in the shared pool.
+     */
+    public static int getIdleConnectionCount() {
+        synchronized (LOCK) {
+            return connectionPool == null ? 0 : connectionPool.idleConnectionCount();
+        }
+    }
+
+    /**
+     * Number of asynchronous calls being executed by the shared dispatcher.
+     */
+    public static int getRunningCallsCount() {
+        synchronized (LOCK) {
+            return dispatcher == null ? 0 : dispatcher.runningCallsCount();
+        }
+    }
+
+    /**
+     * Number of asynchronous calls waiting for the per host or total concurrency limit of the shared dispatcher.
+     */
+    public static int getQueuedCallsCount() {
+        synchronized (LOCK) {
+            return dispatcher == null ? 0 : dispatcher.queuedCallsCount();
+        }
+    }
+
+    /**
+     * Release the pooled connections and the dispatcher threads. The clients built afterwards get a new pool.
+     */
+    public static void shutdown() {
+        synchronized (LOCK) {
+            if (dispatcher != null) {
+                dispatcher.executorService().shutdown();
+                dispatcher = null;
+            }
+            if (connectionPool != null) {
+                connectionPool.evictAll();
+                connectionPool = null;
+            }
+        }
+    }
+
+    private static ConnectionPool connectionPool() {
+        if (connectionPool == null) {
+            connectionPool = new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        }
+        return connectionPool;
+    }
+
+    private static Dispatcher dispatcher() {
+        if (dispatcher == null) {
+            dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        }
+        return dispatcher;
+    }
+
+    @CheckForNull
+    private static Field findField(Class<?> type, String name) {
+        try {
+            Field field = type.getDeclaredField(name);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Cannot access " + type.getName() + "." + name
+                    + ", the Azure clients will not share their connections", e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static Object read(@CheckForNull Field field, Object target) {
+        if (field == null || !field.getDeclaringClass().isInstance(target)) {
+            return null;
+        }
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private SharedHttpPool() {
+        // hide constructor
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.operations;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.rest.RestException;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs an operation on many Azure resources in parallel, for example to delete or provision hundreds of VMs, disks
+ * or NICs.
+ * <p>
+ * The operations run on a bounded worker pool shared by all the bulk requests, and at most a fixed number of
+ * operations run at the same time against one subscription, so that a bulk request does not exhaust the ARM request
+ * quota of the subscription. An operation throttled by ARM (429) pauses its subscription for the {@code Retry-After}
+ * period and is retried, as are the operations that fail with a server error. The failures of the other operations
+ * do not stop the bulk request, they are collected in its {@link Result}.
+ * <p>
+ * The limits can be tuned with the system properties prefixed by the name of this class. Call {@link #shutdown()}
+ * when the owning plugin stops.
+ */
+public final class BulkExecutor {
+    private static final Logger LOGGER = Logger.getLogger(BulkExecutor.class.getName());
+
+    private static final String PROPERTY_PREFIX = BulkExecutor.class.getName();
+
+    static final int THREADS = Integer.getInteger(PROPERTY_PREFIX + ".threads", 16);
+    static final int MAX_PER_SUBSCRIPTION = Integer.getInteger(PROPERTY_PREFIX + ".maxPerSubscription", 8);
+    static final int MAX_ATTEMPTS = Integer.getInteger(PROPERTY_PREFIX + ".maxAttempts", 4);
+    static final long INITIAL_BACKOFF_MILLIS = Long.getLong(PROPERTY_PREFIX + ".initialBackoffMillis", 1000);
+    static final long MAX_BACKOFF_MILLIS = 60000;
+
+    static final int HTTP_TOO_MANY_REQUESTS = 429;
+    static final int HTTP_SERVER_ERROR = 500;
+
+    private static final BulkExecutor INSTANCE =
+            new BulkExecutor(THREADS, MAX_PER_SUBSCRIPTION, MAX_ATTEMPTS, INITIAL_BACKOFF_MILLIS);
+
+    private final int threads;
+    private final int maxPerSubscription;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+
+    private final Object lock = new Object();
+
+    private ExecutorService workers;
+    private ScheduledExecutorService timer;
+    private boolean shutdown;
+
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * The jobs not completed yet, including the ones waiting for their retry on the timer.
+     */
+    private final Set<Job<?, ?>> pending = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+
+    @VisibleForTesting
+    BulkExecutor(int threads, int maxPerSubscription, int maxAttempts, long initialBackoffMillis) {
+        this.threads = threads;
+        this.maxPerSubscription = maxPerSubscription;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public static BulkExecutor get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run the action on all the items of one subscription.
+     *
+     * @see #submit(Collection, Function, Action, Listener)
+     */
+    public <T, R> CompletableFuture<Result<T, R>> submit(Collection<? extends T> items, final String subscriptionId,
+                                                         Action<? super T, ? extends R> action,
+                                                         @CheckForNull Listener<? super T> listener) {
+        return submit(items, new Function<T, String>() {
+            @Override
+            public String apply(T item) {
+                return subscriptionId;
+            }
+        }, action, listener);
+    }
+
+    /**
+     * Run the action on all the items in parallel.
+     *
+     * @param items          the items to run the action on, usually the resources or their IDs. The items must be
+     *                       distinct, as the results are keyed by item.
+     * @param subscriptionOf gives the subscription of an item, the concurrency is limited per subscription.
+     * @param action         the action to run on each item.
+     * @param listener       notified when the action on an item completes, may be {@code null}.
+     * @param <T>            the type of the items.
+     * @param <R>            the type of the action results.
+     * @return the future result, completed once the action completed on all the items. Cancel it to skip the items
+     * that have not started yet.
+     * @throws IllegalArgumentException if the same item is given more than once.
+     */
+    public <T, R> CompletableFuture<Result<T, R>> submit(Collection<? extends T> items,
+                                                         Function<? super T, String> subscriptionOf,
+                                                         Action<? super T, ? extends R> action,
+                                                         @CheckForNull Listener<? super T> listener) {
+        if (new HashSet<>(items).size() != items.size()) {
+            throw new IllegalArgumentException("The items of a bulk request must be distinct");
+        }
+        Bulk<T, R> bulk = new Bulk<>(action, listener, items.size());
+        if (items.isEmpty()) {
+            bulk.future.complete(bulk.result());
+            return bulk.future;
+        }
+        List<Job<T, R>> jobs = new ArrayList<>();
+        for (T item : items) {
+            jobs.add(new Job<>(bulk, item));
+        }
+        pending.addAll(jobs);
+        for (Job<T, R> job : jobs) {
+            lane(subscriptionOf.apply(job.item)).offer(job);
+        }
+        return bulk.future;
+    }
+
+    /**
+     * Number of operations throttled by ARM.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Number of operations retried after a throttling or a server error.
+     */
+    public long getRetriedCount() {
+        return retried.get();
+    }
+
+    /**
+     * Stop the worker pool. The operations not completed yet fail, including the ones waiting for a retry, and the
+     * operations submitted afterwards fail with a {@link RejectedExecutionException}.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            if (workers != null) {
+                workers.shutdown();
+                workers = null;
+            }
+            if (timer != null) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+        for (Lane lane : lanes.values()) {
+            lane.abort();
+        }
+        lanes.clear();
+        for (Job<?, ?> job : pending) {
+            job.fail(new RejectedExecutionException("The bulk executor has been shut down"));
+        }
+    }
+
+    private Lane lane(String subscriptionId) {
+        String key = subscriptionId == null ? "" : subscriptionId;
+        Lane lane = lanes.get(key);
+        if (lane == null) {
+            Lane created = new Lane();
+            lane = lanes.putIfAbsent(key, created);
+            if (lane == null) {
+                lane = created;
+            }
+        }
+        return lane;
+    }
+
+    private ExecutorService workers() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The bulk executor has been shut down");
+            }
+            if (workers == null) {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                        new LinkedBlockingQueue<Runnable>(), threadFactory("azure-bulk-worker-%d"));
+                executor.allowCoreThreadTimeOut(true);
+                workers = executor;
+            }
+            return workers;
+        }
+    }
+
+    private ScheduledExecutorService timer() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The bulk executor has been shut down");
+            }
+            if (timer == null) {
+                timer = new ScheduledThreadPoolExecutor(1, threadFactory("azure-bulk-timer-%d"));
+            }
+            return timer;
+        }
+    }
+
+    private static ThreadFactory threadFactory(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
+
+    /**
+     * Get the HTTP status code of the failed ARM request that caused the error.
+     *
+     * @return the status code, or -1 if the error was not caused by an ARM response.
+     */
+    static int statusCode(Throwable error) {
+        RestException e = restException(error);
+        return e == null || e.response() == null ? -1 : e.response().code();
+    }
+
+    @CheckForNull
+    static String retryAfter(Throwable error) {
+        RestException e = restException(error);
+        return e == null || e.response() == null ? null : e.response().headers().get("Retry-After");
+    }
+
+    @CheckForNull
+    private static RestException restException(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof RestException) {
+                return (RestException) t;
+            }
+        }
+        return null;
+    }
+
+    static boolean isRetryable(int statusCode) {
+        return statusCode == HTTP_TOO_MANY_REQUESTS || statusCode >= HTTP_SERVER_ERROR;
+    }
+
+    static long retryAfterMillis(@CheckForNull String retryAfter, long defaultMillis) {
+        if (retryAfter != null) {
+            try {
+                long seconds = Long.parseLong(retryAfter.trim());
+                return Math.min(TimeUnit.SECONDS.toMillis(Math.max(seconds, 0)), MAX_BACKOFF_MILLIS);
+            } catch (NumberFormatException e) {
+                // not in delta-seconds, fall back to the backoff
+            }
+        }
+        return defaultMillis;
+    }
+
+    /**
+     * The operations queued for one subscription.
+     */
+    private final class Lane {
+        private final Deque<Job<?, ?>> queue = new ArrayDeque<>();
+        private int active;
+        private long blockedUntil;
+        private boolean drainScheduled;
+
+        void offer(Job<?, ?> job) {
+            synchronized (this) {
+                queue.addLast(job);
+            }
+            drain();
+        }
+
+        /**
+         * Pause the subscription and queue the throttled job to run first when it resumes.
+         */
+        void throttle(Job<?, ?> job, long delayMillis) {
+            synchronized (this) {
+                blockedUntil = Math.max(blockedUntil, System.currentTimeMillis() + delayMillis);
+                queue.addFirst(job);
+            }
+            drain();
+        }
+
+        void drain() {
+            List<Job<?, ?>> ready = new ArrayList<>();
+            synchronized (this) {
+                long wait = blockedUntil - System.currentTimeMillis();
+                if (wait > 0) {
+                    if (!drainScheduled && !queue.isEmpty()) {
+                        drainScheduled = true;
+                        schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (Lane.this) {
+                                    drainScheduled = false;
+                                }
+                                drain();
+                            }
+                        }, wait);
+                    }
+                    return;
+                }
+                while (active < maxPerSubscription && !queue.isEmpty()) {
+                    ++active;
+                    ready.add(queue.pollFirst());
+                }
+            }
+            for (final Job<?, ?> job : ready) {
+                try {
+                    workers().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                job.run(Lane.this);
+                            } finally {
+                                release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        --active;
+                    }
+                    job.fail(e);
+                }
+            }
+        }
+
+        /**
+         * Run the task after the delay. If the executor has been shut down, the queued jobs fail.
+         *
+         * @return whether the task has been scheduled.
+         */
+        boolean schedule(Runnable task, long delayMillis) {
+            try {
+                timer().schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                abort();
+                return false;
+            }
+        }
+
+        void abort() {
+            List<Job<?, ?>> dropped;
+            synchronized (this) {
+                dropped = new ArrayList<>(queue);
+                queue.clear();
+            }
+            for (Job<?, ?> job : dropped) {
+                job.fail(new RejectedExecutionException("The bulk executor has been shut down"));
+            }
+        }
+
+        private void release() {
+            synchronized (this) {
+                --active;
+            }
+            drain();
+        }
+    }
+
+    /**
+     * The action on one item.
+     */
+    private final class Job<T, R> {
+        private final Bulk<T, R> bulk;
+        private final T item;
+        private int attempt;
+        private long backoffMillis = initialBackoffMillis;
+
+        Job(Bulk<T, R> bulk, T item) {
+            this.bulk = bulk;
+            this.item = item;
+        }
+
+        void run(final Lane lane) {
+            if (!pending.contains(this)) {
+                // failed by the shutdown
+                return;
+            }
+            if (bulk.future.isDone()) {
+                fail(new CancellationException());
+                return;
+            }
+            ++attempt;
+            R result;
+            try {
+                result = bulk.action.apply(item);
+            } catch (Exception e) {
+                int statusCode = statusCode(e);
+                if (attempt >= maxAttempts || !isRetryable(statusCode)) {
+                    fail(e);
+                    return;
+                }
+                long delay = retryAfterMillis(retryAfter(e), backoffMillis);
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                retried.incrementAndGet();
+                LOGGER.log(Level.FINE, "Operation on {0} failed with {1}, retry in {2} ms",
+                        new Object[]{item, statusCode, delay});
+                if (statusCode == HTTP_TOO_MANY_REQUESTS) {
+                    throttled.incrementAndGet();
+                    lane.throttle(this, delay);
+                } else {
+                    boolean scheduled = lane.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            lane.offer(Job.this);
+                        }
+                    }, delay);
+                    if (!scheduled) {
+                        fail(new RejectedExecutionException("The bulk executor has been shut down"));
+                    }
+                }
+                return;
+            }
+            complete(result, null);
+        }
+
+        void fail(Throwable error) {
+            complete(null, error);
+        }
+
+        /**
+         * Report the outcome of the job once, the shutdown may fail a job that completes later.
+         */
+        private void complete(R result, Throwable error) {
+            if (pending.remove(this)) {
+                bulk.complete(item, result, error);
+            }
+        }
+    }
+
+    /**
+     * The state of one bulk request.
+     */
+    private static final class Bulk<T, R> {
+        private final Action<? super T, ? extends R> action;
+        private final Listener<? super T> listener;
+        private final int total;
+        private final AtomicInteger completed = new AtomicInteger();
+        private final Map<T, R> succeeded = new LinkedHashMap<>();
+        private final Map<T, Throwable> failed = new LinkedHashMap<>();
+        private final CompletableFuture<Result<T, R>> future = new CompletableFuture<>();
+
+        Bulk(Action<? super T, ? extends R> action, @CheckForNull Listener<? super T> listener, int total) {
+            this.action = action;
+            this.listener = listener;
+            this.total = total;
+        }
+
+        void complete(T item, R result, Throwable error) {
+            synchronized (this) {
+                if (error == null) {
+                    succeeded.put(item, result);
+                } else {
+                    failed.put(item, error);
+                }
+            }
+            int done = completed.incrementAndGet();
+            if (listener != null) {
+                try {
+                    listener.onCompleted(item, error, done, total);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Bulk operation listener failed", e);
+                }
+            }
+            if (done == total) {
+                future.complete(result());
+            }
+        }
+
+        synchronized Result<T, R> result() {
+            return new Result<>(succeeded, failed);
+        }
+    }
+
+    /**
+     * An operation on one item.
+     *
+     * @param <T> the type of the items.
+     * @param <R> the type of the results.
+     */
+    public interface Action<T, R> {
+        R apply(T item) throws Exception;
+    }
+
+    /**
+     * Notified of the progress of a bulk request. It is called from the worker threads.
+     *
+     * @param <T> the type of the items.
+     */
+    public interface Listener<T> {
+        /**
+         * The action on an item completed.
+         *
+         * @param item      the item.
+         * @param error     the failure of the action, or {@code null} if it succeeded.
+         * @param completed the number of items completed so far.
+         * @param total     the number of items in the bulk request.
+         */
+        void onCompleted(T item, @CheckForNull Throwable error, int completed, int total);
+    }
+
+    /**
+     * The outcome of a bulk request.
+     *
+     * @param <T> the type of the items.
+     * @param <R> the type of the results.
+     */
+    public static final class Result<T, R> {
+        private final Map<T, R> succeeded;
+        private final Map<T, Throwable> failed;
+
+        Result(Map<T, R> succeeded, Map<T, Throwable> failed) {
+            this.succeeded = Collections.unmodifiableMap(new LinkedHashMap<>(succeeded));
+            this.failed = Collections.unmodifiableMap(new LinkedHashMap<>(failed));
+        }
+
+        /**
+         * The results of the items the action succeeded on, in completion order.
+         */
+        public Map<T, R> getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * The failures of the items the action failed on, in completion order.
+         */
+        public Map<T, Throwable> getFailed() {
+            return failed;
+        }
+
+        public boolean isSuccessful() {
+            return failed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{succeeded=" + succeeded.size() + ", failed=" + failed.size() + "}";
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.operations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.microsoft.jenkins.azurecommons.core.credentials.AbstractTokenCredentials;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenExecutors;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import javax.annotation.CheckForNull;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls long-running operations until they complete, multiplexing all the pending operations on a small shared
+ * scheduler instead of blocking a thread per operation.
+ * <p>
+ * The first poll happens after the initial delay, and the interval grows with every poll that finds the operation
+ * still running, so that short operations complete quickly and long ones are not over-polled. A {@code Retry-After}
+ * reported by the operation takes precedence. Transient poll failures are retried a few times before the operation
+ * fails.
+ * <p>
+ * The delays can be tuned with the system properties prefixed by the name of this class. Call {@link #shutdown()}
+ * when the owning plugin stops.
+ */
+public final class LroPoller {
+    private static final Logger LOGGER = Logger.getLogger(LroPoller.class.getName());
+
+    private static final String PROPERTY_PREFIX = LroPoller.class.getName();
+
+    static final int THREADS = Integer.getInteger(PROPERTY_PREFIX + ".threads", 2);
+    static final long INITIAL_DELAY_MILLIS = Long.getLong(PROPERTY_PREFIX + ".initialDelayMillis", 1000);
+    static final long MAX_DELAY_MILLIS = Long.getLong(PROPERTY_PREFIX + ".maxDelayMillis", 30000);
+    static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final double BACKOFF_FACTOR = 1.5;
+    static final double JITTER = 0.1;
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+    private static final LroPoller INSTANCE = new LroPoller(THREADS, INITIAL_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+    private final int threads;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    private final Object lock = new Object();
+
+    private ScheduledExecutorService scheduler;
+
+    private boolean shutdown;
+
+    /**
+     * The operations being polled, the tasks returned by the scheduler on shutdown are its own wrappers.
+     */
+    private final Set<Polling<?>> pending = ConcurrentHashMap.newKeySet();
+
+    @VisibleForTesting
+    LroPoller(int threads, long initialDelayMillis, long maxDelayMillis) {
+        this.threads = threads;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public static LroPoller get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Poll the operation until it completes.
+     *
+     * @param operation the operation to poll.
+     * @param <T>       the type of the operation result.
+     * @return the future result, cancel it to stop polling.
+     */
+    public <T> CompletableFuture<T> submit(Operation<T> operation) {
+        return submit(operation, 0);
+    }
+
+    /**
+     * Poll the operation until it completes or the timeout expires.
+     *
+     * @param operation     the operation to poll.
+     * @param timeoutMillis the maximum time to wait for the operation, 0 to wait indefinitely.
+     * @param <T>           the type of the operation result.
+     * @return the future result, completed with a {@link TimeoutException} if the timeout expires. Cancel it to stop
+     * polling.
+     */
+    public <T> CompletableFuture<T> submit(Operation<T> operation, long timeoutMillis) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : Long.MAX_VALUE;
+        Polling<T> polling = new Polling<>(operation, future, deadline);
+        pending.add(polling);
+        schedule(polling, initialDelayMillis);
+        return future;
+    }
+
+    /**
+     * Number of operations being polled.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stop polling. The pending operations complete exceptionally, and the operations submitted afterwards fail with
+     * a {@link RejectedExecutionException}.
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+        for (Polling<?> polling : pending) {
+            polling.abort();
+        }
+    }
+
+    private void schedule(Polling<?> polling, long delayMillis) {
+        try {
+            scheduler().schedule(polling, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            polling.finish(null, e);
+        }
+    }
+
+    private ScheduledExecutorService scheduler() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("The poller has been shut down");
+            }
+            if (scheduler == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                        new ThreadFactoryBuilder().setNameFormat("azure-lro-poller-%d").setDaemon(true).build());
+                executor.setRemoveOnCancelPolicy(true);
+                scheduler = executor;
+            }
+            return scheduler;
+        }
+    }
+
+    long nextDelay(long previousMillis, @CheckForNull Long retryAfterMillis) {
+        if (retryAfterMillis != null && retryAfterMillis >= 0) {
+            return Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS);
+        }
+        long next = Math.min((long) (previousMillis * BACKOFF_FACTOR), maxDelayMillis);
+        long jitter = (long) (next * JITTER);
+        return jitter > 0 ? next - jitter + ThreadLocalRandom.current().nextLong(2 * jitter + 1) : next;
+    }
+
+    /**
+     * Strip the {@link CompletionException} added by the dependent stages of a {@link CompletableFuture}.
+     */
+    private static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    private final class Polling<T> implements Runnable {
+        private final Operation<T> operation;
+        private final CompletableFuture<T> future;
+        private final long deadline;
+        private long delayMillis = initialDelayMillis;
+        private int failures;
+
+        Polling(Operation<T> operation, CompletableFuture<T> future, long deadline) {
+            this.operation = operation;
+            this.future = future;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                pending.remove(this);
+                return;
+            }
+            CompletableFuture<Status<T>> poll;
+            try {
+                poll = operation.pollAsync();
+            } catch (RuntimeException e) {
+                poll = new CompletableFuture<>();
+                poll.completeExceptionally(e);
+            }
+            poll.whenComplete(new BiConsumer<Status<T>, Throwable>() {
+                @Override
+                public void accept(Status<T> status, Throwable error) {
+                    polled(status, unwrap(error));
+                }
+            });
+        }
+
+        /**
+         * Handle the outcome of a poll and schedule the next one, on the thread that completed the poll.
+         */
+        private void polled(Status<T> status, Throwable error) {
+            Long retryAfterMillis = null;
+            if (error instanceof IOException) {
+                if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                    finish(null, error);
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Failed to poll " + operation + ", will retry", error);
+            } else if (error != null) {
+                finish(null, error);
+                return;
+            } else {
+                failures = 0;
+                if (status.done) {
+                    finish(status.result, null);
+                    return;
+                }
+                retryAfterMillis = status.retryAfterMillis;
+            }
+            delayMillis = nextDelay(delayMillis, retryAfterMillis);
+            if (System.currentTimeMillis() + delayMillis > deadline) {
+                finish(null, new TimeoutException("Timed out waiting for " + operation));
+                return;
+            }
+            schedule(this, delayMillis);
+        }
+
+        void abort() {
+            finish(null, new IOException("The poller has been shut down before " + operation + " completed"));
+        }
+
+        private void finish(T result, Throwable error) {
+            pending.remove(this);
+            if (error == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * Poll an ARM asynchronous operation through its {@code Azure-AsyncOperation} or {@code Location} URL.
+     * <p>
+     * The operation completes with the body of the final response. It fails if ARM reports the operation as
+     * {@code Failed} or {@code Canceled}, or responds with an error status.
+     *
+     * @param client      the HTTP client to poll with, for example from {@code SharedHttpPool.newClient()}.
+     * @param credentials the credentials that started the operation.
+     * @param url         the URL reported by the response that started the operation.
+     * @return the operation to submit.
+     */
+    public static Operation<String> armOperation(final OkHttpClient client, final AzureTokenCredentials credentials,
+                                                 final String url) {
+        return new ArmOperation(client, credentials, url);
+    }
+
+    /**
+     * A long-running operation.
+     *
+     * @param <T> the type of the operation result.
+     */
+    public interface Operation<T> {
+        /**
+         * Check the state of the operation once, without waiting for it.
+         *
+         * @return the state of the operation.
+         * @throws IOException if the state cannot be checked, retried a few times before the operation fails.
+         * @throws Exception   if the operation failed.
+         */
+        Status<T> poll() throws Exception;
+
+        /**
+         * Check the state of the operation once without blocking the calling thread, which is one of the few threads
+         * shared by all the pending operations. The default implementation calls {@link #poll()} on the calling
+         * thread, the operations that wait for I/O should override it.
+         *
+         * @return the future state of the operation, completed exceptionally as {@link #poll()} would throw.
+         */
+        default CompletableFuture<Status<T>> pollAsync() {
+            CompletableFuture<Status<T>> future = new CompletableFuture<>();
+            try {
+                future.complete(poll());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+    }
+
+    /**
+     * The state of an operation.
+     *
+     * @param <T> the type of the operation result.
+     */
+    public static final class Status<T> {
+        private final boolean done;
+        private final T result;
+        private final Long retryAfterMillis;
+
+        private Status(boolean done, T result, Long retryAfterMillis) {
+            this.done = done;
+            this.result = result;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public static <T> Status<T> done(T result) {
+            return new Status<>(true, result, null);
+        }
+
+        public static <T> Status<T> inProgress() {
+            return new Status<>(false, null, null);
+        }
+
+        /**
+         * The operation is still running and should be polled again after the given delay.
+         */
+        public static <T> Status<T> inProgress(long retryAfterMillis) {
+            return new Status<>(false, null, retryAfterMillis);
+        }
+    }
+
+    private static final class ArmOperation implements Operation<String> {
+        private static final int HTTP_ACCEPTED = 202;
+
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        private final OkHttpClient client;
+        private final AzureTokenCredentials credentials;
+        private final String url;
+
+        ArmOperation(OkHttpClient client, AzureTokenCredentials credentials, String url) {
+            this.client = client;
+            this.credentials = credentials;
+            this.url = url;
+        }
+
+        @Override
+        public Status<String> poll() throws Exception {
+            try {
+                return pollAsync().get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        /**
+         * Acquire the token and send the request without blocking: the token is acquired asynchronously by the
+         * credentials that support it, or on the token executor otherwise, and the response is handled on the thread
+         * of the HTTP client.
+         */
+        @Override
+        public CompletableFuture<Status<String>> pollAsync() {
+            return token().thenCompose(new Function<String, CompletableFuture<Status<String>>>() {
+                @Override
+                public CompletableFuture<Status<String>> apply(String token) {
+                    return send(token);
+                }
+            });
+        }
+
+        private CompletableFuture<String> token() {
+            final String resource = credentials.environment().managementEndpoint();
+            if (credentials instanceof AbstractTokenCredentials) {
+                return ((AbstractTokenCredentials) credentials).getTokenAsync(resource);
+            }
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            Runnable acquisition = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(credentials.getToken(resource));
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            };
+            try {
+                TokenExecutors.fetcher().execute(acquisition);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        private CompletableFuture<Status<String>> send(String token) {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", "Bearer " + token)
+                    .build();
+            final CompletableFuture<Status<String>> future = new CompletableFuture<>();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try {
+                        future.complete(status(response));
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+            return future;
+        }
+
+        private Status<String> status(Response response) throws IOException {
+            try {
+                ResponseBody responseBody = response.body();
+                String body = responseBody == null ? "" : responseBody.string();
+                Long retryAfterMillis = retryAfterMillis(response.header("Retry-After"));
+                if (!response.isSuccessful()) {
+                    throw new IOException("Failed to poll " + this + ": " + response.code() + " " + body);
+                }
+                if (response.code() == HTTP_ACCEPTED) {
+                    return retryAfterMillis == null ? Status.<String>inProgress() : Status.<String>inProgress(
+                            retryAfterMillis);
+                }
+                String status = statusOf(body);
+                if (status == null || "Succeeded".equalsIgnoreCase(status)) {
+                    return Status.done(body);
+                } else if ("Failed".equalsIgnoreCase(status) || "Canceled".equalsIgnoreCase(status)) {
+                    throw new IllegalStateException("Operation " + status + ": " + body);
+                }
+                return retryAfterMillis == null ? Status.<String>inProgress() : Status.<String>inProgress(
+                        retryAfterMillis);
+            } finally {
+                response.close();
+            }
+        }
+
+        @CheckForNull
+        private static String statusOf(String body) {
+            if (body.isEmpty()) {
+                return null;
+            }
+            try {
+                JsonNode status = MAPPER.readTree(body).get("status");
+                return status == null ? null : status.asText();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @CheckForNull
+        private static Long retryAfterMillis(@CheckForNull String retryAfter) {
+            if (retryAfter == null) {
+                return null;
+            }
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ARM operation " + url;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core;
+
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenRefreshInterceptor;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AzureClientFactoryTest {
+
+    @Test
+    public void fingerprintTracksTheCredentialData() {
+        TokenCredentialData data = servicePrincipal("secret");
+        String fingerprint = AzureClientFactory.fingerprint(data);
+
+        assertEquals(fingerprint, AzureClientFactory.fingerprint(servicePrincipal("secret")));
+        assertNotEquals(fingerprint, AzureClientFactory.fingerprint(servicePrincipal("rotated")));
+        assertFalse(fingerprint.contains("secret"));
+
+        data.setManagementEndpoint("https://management.core.chinacloudapi.cn/");
+        assertNotEquals(fingerprint, AzureClientFactory.fingerprint(data));
+    }
+
+    @Test
+    public void fingerprintSeparatesTheFields() {
+        TokenCredentialData first = servicePrincipal("secret");
+        first.setTenant("ab");
+        first.setClientId("c");
+        TokenCredentialData second = servicePrincipal("secret");
+        second.setTenant("a");
+        second.setClientId("bc");
+
+        assertNotEquals(AzureClientFactory.fingerprint(first), AzureClientFactory.fingerprint(second));
+    }
+
+    @Test
+    public void onlyValueConfigurersAreCached() {
+        assertTrue(AzureClientFactory.hasValueEquality(null));
+        assertTrue(AzureClientFactory.hasValueEquality(
+                AzureClientFactory.withInterceptors(new TokenRefreshInterceptor())));
+        assertEquals(AzureClientFactory.withInterceptors(new TokenRefreshInterceptor()),
+                AzureClientFactory.withInterceptors(new TokenRefreshInterceptor()));
+
+        AzureClientFactory.Configurer lambda = configurable -> configurable;
+        Interceptor anonymous = new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                return chain.proceed(chain.request());
+            }
+        };
+        assertFalse(AzureClientFactory.hasValueEquality(lambda));
+        assertFalse(AzureClientFactory.hasValueEquality(AzureClientFactory.withInterceptors(anonymous)));
+        assertFalse(AzureClientFactory.hasValueEquality(AzureClientFactory.compose(
+                AzureClientFactory.withInterceptors(new TokenRefreshInterceptor()), lambda)));
+    }
+
+    private static TokenCredentialData servicePrincipal(String secret) {
+        TokenCredentialData data = new TokenCredentialData();
+        data.setType(TokenCredentialData.TYPE_SP);
+        data.setAzureEnvironmentName("Azure");
+        data.setSubscriptionId("subscription");
+        data.setTenant("tenant");
+        data.setClientId("client");
+        data.setClientSecret(secret);
+        return data;
+    }
+}
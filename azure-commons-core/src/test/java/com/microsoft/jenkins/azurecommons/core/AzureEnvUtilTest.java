@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core;
+
+import com.microsoft.azure.AzureEnvironment;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class AzureEnvUtilTest {
+
+    @Test
+    public void resolvedEndpointsAreReused() {
+        AzureEnvironment resolved = AzureEnvUtil.resolveAzureEnv("Azure China", null, "", null, null);
+
+        assertEquals(resolved.endpoints(), AzureEnvUtil.resolveAzureEnv("azure china", null, null, null, null)
+                .endpoints());
+        assertNotSame(AzureEnvironment.AZURE_CHINA, resolved);
+        assertEquals(AzureEnvironment.AZURE_CHINA.resourceManagerEndpoint(), resolved.resourceManagerEndpoint());
+    }
+
+    @Test
+    public void overrideIsApplied() {
+        String graph = AzureEnvironment.AZURE.graphEndpoint();
+        AzureEnvironment resolved = AzureEnvUtil.resolveAzureEnv("Azure", null, null,
+                "https://management.example.com/", graph + "//");
+
+        assertEquals("https://management.example.com/", resolved.resourceManagerEndpoint());
+        assertEquals(graph, resolved.graphEndpoint());
+        assertEquals(resolved.endpoints(), AzureEnvUtil.resolveAzureEnv("Azure", null, null,
+                "https://management.example.com/", null).endpoints());
+        assertNotEquals(resolved.endpoints(), AzureEnvUtil.resolveAzureEnv("Azure", null, null, null, null)
+                .endpoints());
+        assertFalse(AzureEnvironment.AZURE.resourceManagerEndpoint().contains("example"));
+    }
+
+    @Test
+    public void resolvedEnvironmentIsACopy() {
+        AzureEnvironment resolved = AzureEnvUtil.resolveAzureEnv("Azure", null, null, null, null);
+        resolved.endpoints().put(AzureEnvironment.Endpoint.GRAPH.identifier(), "https://graph.example.com/");
+
+        assertNotSame(resolved, AzureEnvUtil.resolveAzureEnv("Azure", null, null, null, null));
+        assertTrue(AzureEnvUtil.resolveAzureEnv("Azure", null, null, null, null).graphEndpoint()
+                .contains("windows.net"));
+        assertTrue(AzureEnvironment.AZURE.graphEndpoint().contains("windows.net"));
+    }
+
+    @Test
+    public void trailingSlashesAreNotAnOverride() {
+        assertFalse(AzureEnvUtil.isOverridden("https://management.azure.com/", "https://MANAGEMENT.azure.com//"));
+        assertTrue(AzureEnvUtil.isOverridden("https://management.azure.com/", "https://example.com/"));
+        assertEquals("", AzureEnvUtil.stripTrailingSlashes("///"));
+    }
+}
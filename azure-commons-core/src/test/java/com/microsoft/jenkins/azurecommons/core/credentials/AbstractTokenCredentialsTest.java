@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.microsoft.azure.AzureEnvironment;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AbstractTokenCredentialsTest {
+
+    @Test
+    public void concurrentMissesShareOneFetch() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingCredentials credentials = new CountingCredentials(release, 3600);
+
+        final CountDownLatch started = new CountDownLatch(8);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; ++i) {
+                results.add(pool.submit(() -> {
+                    started.countDown();
+                    return credentials.getToken("https://management.azure.com/");
+                }));
+            }
+            // a caller arriving after the acquisition completes gets the cached token, not a new one
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("token-1", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, credentials.acquired.get());
+    }
+
+    @Test
+    public void cachedTokenIsReused() throws Exception {
+        CountingCredentials credentials = new CountingCredentials(new CountDownLatch(0), 3600);
+        assertEquals("token-1", credentials.getToken("r1"));
+        assertEquals("token-1", credentials.getToken("r1"));
+        assertEquals("token-2", credentials.getToken("r2"));
+        assertEquals(2, credentials.acquired.get());
+    }
+
+    @Test
+    public void expiredTokenIsAcquiredAgain() throws Exception {
+        CountingCredentials credentials = new CountingCredentials(new CountDownLatch(0), -10);
+        assertEquals("token-1", credentials.getToken("r1"));
+        assertEquals("token-2", credentials.getToken("r1"));
+    }
+
+    @Test
+    public void expiringTokenIsRefreshedInTheBackground() throws Exception {
+        // issued for an hour, still valid beyond the expiry skew but within the refresh-ahead window
+        CountingCredentials credentials = new CountingCredentials(new CountDownLatch(0), 200);
+        credentials.expiresIn = 3600;
+        assertEquals("token-1", credentials.getToken("r1"));
+
+        CountDownLatch release = new CountDownLatch(1);
+        credentials.release = release;
+        credentials.lifetime = 3600;
+        for (int i = 0; i < 4; ++i) {
+            assertEquals("token-1", credentials.getToken("r1"));
+        }
+        release.countDown();
+
+        // the refreshed token is published before the refresh releases its slot, so no other refresh can start
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        String token = credentials.getToken("r1");
+        while (!"token-2".equals(token) && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+            token = credentials.getToken("r1");
+        }
+        assertEquals("token-2", token);
+        assertEquals(2, credentials.acquired.get());
+        assertEquals("token-2", credentials.getToken("r1"));
+        assertEquals(2, credentials.acquired.get());
+    }
+
+    @Test
+    public void asyncTokenDoesNotBlockTheCaller() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingCredentials credentials = new CountingCredentials(release, 3600);
+        CompletableFuture<String> first = credentials.getTokenAsync("r1");
+        CompletableFuture<String> second = credentials.getTokenAsync("r1");
+
+        assertFalse(first.isDone());
+        release.countDown();
+        assertEquals("token-1", first.get(10, TimeUnit.SECONDS));
+        assertEquals("token-1", second.get(10, TimeUnit.SECONDS));
+        assertTrue(credentials.getTokenAsync("r1").isDone());
+        assertEquals(1, credentials.acquired.get());
+    }
+
+    @Test
+    public void failureIsPropagatedAndNotCached() throws Exception {
+        CountingCredentials credentials = new CountingCredentials(new CountDownLatch(0), 3600);
+        credentials.fail = true;
+        try {
+            credentials.getToken("r1");
+            fail("The acquisition failure should be propagated");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("r1"));
+        }
+        credentials.fail = false;
+        assertEquals("token-2", credentials.getToken("r1"));
+    }
+
+    private static class CountingCredentials extends AbstractTokenCredentials {
+        private final AtomicInteger acquired = new AtomicInteger();
+        private volatile CountDownLatch release;
+        private volatile long lifetime;
+        private volatile long expiresIn;
+        private volatile boolean fail;
+
+        CountingCredentials(CountDownLatch release, long lifetime) {
+            super(AzureEnvironment.AZURE, "tenant");
+            this.release = release;
+            this.lifetime = lifetime;
+            this.expiresIn = Math.abs(lifetime);
+        }
+
+        @Override
+        protected Token acquireAccessToken(String resource) throws IOException {
+            int count = acquired.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (fail) {
+                throw new IOException("failed to acquire " + resource);
+            }
+            long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+            return new Token(resource, expiresIn, now + lifetime, "token-" + count, null, "Bearer");
+        }
+    }
+}
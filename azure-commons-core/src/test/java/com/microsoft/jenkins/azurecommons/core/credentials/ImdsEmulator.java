@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import com.sun.net.httpserver.HttpExchange;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the token endpoint of the instance metadata service, for tests and benchmarks off Azure.
+ * <p>
+ * The issued tokens are JWTs with the {@code tid} and {@code exp} claims. The latency, the share of failed and
+ * throttled responses and the token lifetime can be tuned while the emulator runs.
+ */
+public final class ImdsEmulator implements AutoCloseable {
+    static final String TENANT = "00000000-0000-0000-0000-000000000000";
+
+    private static final String PATH = "/metadata/identity/oauth2/token";
+
+    private final TestHttpServer server = new TestHttpServer(this::handle);
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger issued = new AtomicInteger();
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile long retryAfterSeconds;
+    private volatile long lifetimeSeconds = 3600;
+
+    public ImdsEmulator() throws IOException {
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return server.url(PATH);
+    }
+
+    public ImdsEmulator withLatency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    public ImdsEmulator withErrorRate(double rate) {
+        this.errorRate = rate;
+        return this;
+    }
+
+    public ImdsEmulator withThrottleRate(double rate, long retryAfter) {
+        this.throttleRate = rate;
+        this.retryAfterSeconds = retryAfter;
+        return this;
+    }
+
+    public ImdsEmulator withTokenLifetime(long seconds) {
+        this.lifetimeSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Number of requests received, including the failed and throttled ones.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Number of tokens issued.
+     */
+    public int getIssuedCount() {
+        return issued.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (!"true".equals(exchange.getRequestHeaders().getFirst("Metadata"))) {
+                TestHttpServer.respond(exchange, 400, "{\"error\":\"invalid_request\"}");
+                return;
+            }
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < throttleRate) {
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+                TestHttpServer.respond(exchange, 429, "{\"error\":\"too_many_requests\"}");
+                return;
+            }
+            if (dice < throttleRate + errorRate) {
+                TestHttpServer.respond(exchange, 500, "{\"error\":\"internal_error\"}");
+                return;
+            }
+            String resource = resource(exchange);
+            if (resource == null) {
+                TestHttpServer.respond(exchange, 400, "{\"error\":\"invalid_resource\"}");
+                return;
+            }
+            TestHttpServer.respond(exchange, 200, token(resource));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            TestHttpServer.respond(exchange, 500, "{\"error\":\"interrupted\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String resource(HttpExchange exchange) {
+        HttpUrl url = HttpUrl.parse("http://localhost" + exchange.getRequestURI());
+        return url == null ? null : url.queryParameter("resource");
+    }
+
+    private String token(String resource) throws UnsupportedEncodingException {
+        long lifetime = lifetimeSeconds;
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        long expiresOn = now + lifetime;
+        String accessToken = JWT.create()
+                .withClaim("tid", TENANT)
+                .withClaim("seq", issued.incrementAndGet())
+                .withAudience(resource)
+                .withExpiresAt(new Date(TimeUnit.SECONDS.toMillis(expiresOn)))
+                .sign(Algorithm.HMAC256("imds-emulator"));
+        return "{\"access_token\":\"" + accessToken + "\",\"expires_in\":\"" + lifetime
+                + "\",\"expires_on\":\"" + expiresOn + "\",\"not_before\":\"" + now
+                + "\",\"resource\":\"" + resource + "\",\"token_type\":\"Bearer\"}";
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+}
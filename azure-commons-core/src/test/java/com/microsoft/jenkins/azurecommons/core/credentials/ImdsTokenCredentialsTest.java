@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.microsoft.azure.AzureEnvironment;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class ImdsTokenCredentialsTest {
+    private static final String RESOURCE = "https://management.azure.com/";
+
+    private ImdsEmulator emulator;
+
+    @Before
+    public void setUp() throws IOException {
+        emulator = new ImdsEmulator();
+    }
+
+    @After
+    public void tearDown() {
+        emulator.close();
+    }
+
+    @Test
+    public void tokenIsSharedAcrossInstances() throws Exception {
+        ImdsTokenCredentials first = new ImdsTokenCredentials(AzureEnvironment.AZURE, emulator.getEndpoint());
+        ImdsTokenCredentials second = new ImdsTokenCredentials(AzureEnvironment.AZURE, emulator.getEndpoint());
+
+        String token = first.getToken(RESOURCE);
+        assertEquals(token, first.getToken(RESOURCE));
+        assertEquals(token, second.getToken(RESOURCE));
+        assertEquals(ImdsEmulator.TENANT, second.domain());
+        assertEquals(1, emulator.getIssuedCount());
+    }
+
+    @Test
+    public void shortLivedTokenIsAcquiredAgain() throws Exception {
+        emulator.withTokenLifetime(AbstractTokenCredentials.EXPIRY_SKEW_SECONDS / 2);
+        ImdsTokenCredentials credentials = new ImdsTokenCredentials(AzureEnvironment.AZURE, emulator.getEndpoint());
+
+        String token = credentials.getToken(RESOURCE);
+        assertNotEquals(token, credentials.getToken(RESOURCE));
+        assertEquals(2, emulator.getIssuedCount());
+    }
+
+    @Test
+    public void throttledRequestsAreRetriedByTheBroker() throws Exception {
+        emulator.withThrottleRate(1, 0);
+        TokenBroker broker = new TokenBroker(100, 1);
+        try {
+            broker.request("imds|" + RESOURCE, () -> ImdsTokenCredentials.requestIMDSEndpoint(emulator.getEndpoint(),
+                    RESOURCE));
+            fail("The throttled request should fail once the attempts are exhausted");
+        } catch (TokenHttpClient.HttpStatusException e) {
+            assertEquals(TokenBroker.HTTP_TOO_MANY_REQUESTS, e.getStatusCode());
+        }
+        assertEquals(TokenBroker.MAX_ATTEMPTS, emulator.getRequestCount());
+
+        emulator.withThrottleRate(0, 0);
+        broker.request("imds|" + RESOURCE, () -> ImdsTokenCredentials.requestIMDSEndpoint(emulator.getEndpoint(),
+                RESOURCE));
+        assertEquals(1, emulator.getIssuedCount());
+    }
+}
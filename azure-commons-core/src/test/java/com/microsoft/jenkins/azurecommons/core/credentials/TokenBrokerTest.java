@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TokenBrokerTest {
+
+    @Test
+    public void throttledRequestIsRetried() throws Exception {
+        TokenBroker broker = new TokenBroker(100, 1);
+        final AtomicInteger calls = new AtomicInteger();
+        final String expected = body(3600);
+        String body = broker.request("imds|r1", () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new TokenHttpClient.HttpStatusException(429, "Too Many Requests", "0");
+            }
+            return expected;
+        });
+
+        assertEquals(expected, body);
+        assertEquals(3, calls.get());
+        assertEquals(3, broker.getUpstreamRequestCount());
+    }
+
+    @Test
+    public void clientErrorIsNotRetried() throws Exception {
+        TokenBroker broker = new TokenBroker(100, 1);
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            broker.request("imds|r1", () -> {
+                calls.incrementAndGet();
+                throw new TokenHttpClient.HttpStatusException(400, "Bad Request", null);
+            });
+            fail("The client error should be propagated");
+        } catch (TokenHttpClient.HttpStatusException e) {
+            assertEquals(400, e.getStatusCode());
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void freshResponseIsReused() throws Exception {
+        TokenBroker broker = new TokenBroker(100, 1);
+        final AtomicInteger calls = new AtomicInteger();
+        TokenBroker.Fetcher fetcher = () -> {
+            calls.incrementAndGet();
+            return body(3600);
+        };
+        broker.request("imds|r1", fetcher);
+        broker.request("imds|r1", fetcher);
+
+        assertEquals(1, calls.get());
+        assertEquals(1, broker.getCachedResponseCount());
+    }
+
+    @Test
+    public void rejectedTokenIsRequestedAgainOnce() throws Exception {
+        TokenBroker broker = new TokenBroker(100, 1);
+        final AtomicInteger calls = new AtomicInteger();
+        TokenBroker.Fetcher fetcher = () -> {
+            calls.incrementAndGet();
+            return body(3600);
+        };
+        broker.request("imds|r1", fetcher);
+        broker.evict("token");
+        broker.request("imds|r1", fetcher);
+        broker.request("imds|r1", fetcher);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void expiringResponseIsNotReused() throws Exception {
+        TokenBroker broker = new TokenBroker(100, 1);
+        final AtomicInteger calls = new AtomicInteger();
+        TokenBroker.Fetcher fetcher = () -> {
+            calls.incrementAndGet();
+            return body(-10);
+        };
+        broker.request("imds|r1", fetcher);
+        broker.request("imds|r1", fetcher);
+
+        assertEquals(2, calls.get());
+    }
+
+    private static String body(long lifetime) {
+        long expiresOn = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + lifetime;
+        return "{\"access_token\":\"token\",\"expires_in\":\"" + Math.abs(lifetime) + "\",\"expires_on\":\""
+                + expiresOn + "\",\"token_type\":\"Bearer\"}";
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.credentials;
+
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.jenkins.azurecommons.core.credentials.AbstractTokenCredentials.Token;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TokenCacheTest {
+    private static final String AUTHORITY = "https://login.microsoftonline.com/";
+
+    @Test
+    public void validTokenIsShared() {
+        TokenCache cache = new TokenCache(10);
+        Token token = token("r1", 3600);
+        cache.put(key("r1"), token);
+
+        assertSame(token, cache.getIfValid(key("r1")));
+        assertNull(cache.getIfValid(key("r2")));
+        assertNull(cache.getIfValid(new TokenCache.Key(TokenCredentialData.TYPE_MSI, null, null, AUTHORITY, "r1")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void servicePrincipalKeyDependsOnTheSecret() {
+        TokenCache.Key key = new CachedApplicationTokenCredentials("client", "tenant", "secret", AzureEnvironment.AZURE)
+                .getCacheKey("r1");
+        assertEquals(key, new CachedApplicationTokenCredentials("client", "tenant", "secret", AzureEnvironment.AZURE)
+                .getCacheKey("r1"));
+        assertNotEquals(key, new CachedApplicationTokenCredentials("client", "tenant", "rotated",
+                AzureEnvironment.AZURE).getCacheKey("r1"));
+        assertNotEquals(key, new CachedApplicationTokenCredentials("client", "tenant", new byte[]{1, 2}, "secret",
+                AzureEnvironment.AZURE).getCacheKey("r1"));
+    }
+
+    @Test
+    public void onlyTheTokensOfTheChangedServicePrincipalAreDropped() {
+        TokenCache cache = new TokenCache(10);
+        cache.put(spKey("r1"), token("r1", 3600));
+        cache.put(spKey("r2"), token("r2", 3600));
+        TokenCache.Key other = new TokenCache.Key(TokenCredentialData.TYPE_SP, "tenant", "other", AUTHORITY, "r1");
+        cache.put(other, token("r1", 3600));
+        cache.put(key("r1"), token("r1", 3600));
+
+        TokenCredentialData data = new TokenCredentialData();
+        data.setType(TokenCredentialData.TYPE_SP);
+        data.setTenant("tenant");
+        data.setClientId("client");
+        cache.invalidate(data);
+
+        assertNull(cache.getIfValid(spKey("r1")));
+        assertNull(cache.getIfValid(spKey("r2")));
+        assertNotNull(cache.getIfValid(other));
+        assertNotNull(cache.getIfValid(key("r1")));
+    }
+
+    @Test
+    public void tokenThatIsNotAJwtIsNotCached() throws Exception {
+        final AtomicInteger acquired = new AtomicInteger();
+        CachedApplicationTokenCredentials credentials = new CachedApplicationTokenCredentials("opaque-client",
+                "tenant", "secret", AzureEnvironment.AZURE) {
+            @Override
+            String acquireToken(String resource) {
+                return "opaque-" + acquired.incrementAndGet();
+            }
+        };
+        long size = TokenCache.get().size();
+
+        assertEquals("opaque-1", credentials.getToken("r1"));
+        assertEquals("opaque-2", credentials.getToken("r1"));
+        assertEquals(size, TokenCache.get().size());
+        assertNull(TokenCache.get().getIfValid(credentials.getCacheKey("r1")));
+    }
+
+    @Test
+    public void expiredTokenIsDropped() {
+        TokenCache cache = new TokenCache(10);
+        cache.put(key("r1"), token("r1", -10));
+
+        assertNull(cache.getIfValid(key("r1")));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredTokensAreSweptBeforeEviction() {
+        TokenCache cache = new TokenCache(2);
+        cache.put(key("r1"), token("r1", -10));
+        Token valid = token("r2", 3600);
+        cache.put(key("r2"), valid);
+        cache.put(key("r3"), token("r3", 3600));
+
+        assertSame(valid, cache.getIfValid(key("r2")));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void revokedTokenIsDroppedUntilAcquiredAgain() {
+        TokenCache cache = new TokenCache(10);
+        cache.put(spKey("r1"), token("r1", 3600));
+        cache.put(spKey("r2"), token("r2", 3600));
+        cache.revoke("token-r1");
+
+        assertTrue(cache.isRevoked("token-r1"));
+        assertFalse(cache.isRevoked("token-r2"));
+        assertNull(cache.getIfValid(spKey("r1")));
+        assertEquals(1, cache.size());
+
+        // the endpoint may hand out the same token again, it is not blacklisted
+        cache.put(spKey("r1"), token("r1", 3600));
+        assertFalse(cache.isRevoked("token-r1"));
+        assertEquals("token-r1", cache.getIfValid(spKey("r1")).getAccessToken());
+    }
+
+    @Test
+    public void metadataServiceTokenIsDroppedButNotRevoked() {
+        TokenCache cache = new TokenCache(10);
+        cache.put(key("r1"), token("r1", 3600));
+        cache.revoke("token-r1");
+
+        assertFalse(cache.isRevoked("token-r1"));
+        assertNull(cache.getIfValid(key("r1")));
+    }
+
+    @Test
+    public void concurrentLoadsShareOneLoader() throws Exception {
+        final TokenCache cache = new TokenCache(10);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final TokenCache.Loader loader = () -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return token("r1", 3600);
+        };
+
+        final CountDownLatch started = new CountDownLatch(4);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Token>> results = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                results.add(pool.submit(() -> {
+                    started.countDown();
+                    return cache.getOrLoad(key("r1"), 0, loader);
+                }));
+            }
+            // a caller arriving after the load completes gets the cached token, the same instance
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            Token first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<Token> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+        assertSame(cache.getIfValid(key("r1")), cache.getOrLoad(key("r1"), 0, loader));
+        assertEquals(1, loads.get());
+    }
+
+    private static TokenCache.Key key(String resource) {
+        return new TokenCache.Key(TokenCredentialData.TYPE_IMDS, null, null, AUTHORITY, resource);
+    }
+
+    private static TokenCache.Key spKey(String resource) {
+        return new TokenCache.Key(TokenCredentialData.TYPE_SP, "tenant", "client", AUTHORITY, resource, "hash");
+    }
+
+    private static Token token(String resource, long lifetime) {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        return new Token(resource, Math.abs(lifetime), now + lifetime, "token-" + resource, null, "Bearer");
+    }
+}
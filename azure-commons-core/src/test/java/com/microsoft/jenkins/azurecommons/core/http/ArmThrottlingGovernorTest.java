@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ArmThrottlingGovernorTest {
+    private volatile int status = 200;
+    private volatile String remainingReads = "11999";
+
+    @Rule
+    public final TestHttpServer server = new TestHttpServer(exchange -> {
+        if (remainingReads != null) {
+            exchange.getResponseHeaders().add(ArmThrottlingGovernor.REMAINING_READS_HEADER, remainingReads);
+        }
+        exchange.getResponseHeaders().add("Retry-After", "0");
+        TestHttpServer.respond(exchange, status, null);
+    });
+
+    @Test
+    public void budgetFollowsTheResponseHeaders() throws IOException {
+        ArmThrottlingGovernor governor = new ArmThrottlingGovernor(100, 1000, 1000);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(governor).build();
+
+        assertEquals(-1, governor.getRemaining("sub", false));
+        get(client, "/subscriptions/sub/resourceGroups");
+        assertEquals(11999, governor.getRemaining("SUB", false));
+        assertEquals(-1, governor.getRemaining("sub", true));
+        assertEquals(0, governor.getPacedCount());
+    }
+
+    @Test
+    public void lowBudgetAndThrottlingArePaced() throws IOException {
+        ArmThrottlingGovernor governor = new ArmThrottlingGovernor(100, 1000, 1000);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(governor).build();
+
+        remainingReads = "5";
+        get(client, "/subscriptions/sub/resourceGroups");
+        get(client, "/subscriptions/sub/resourceGroups");
+        assertEquals(1, governor.getPacedCount());
+
+        status = 429;
+        get(client, "/subscriptions/sub/resourceGroups");
+        assertEquals(1, governor.getThrottledCount());
+
+        get(client, "/providers");
+        assertEquals(2, governor.getPacedCount());
+    }
+
+    @Test
+    public void exhaustedBudgetKeepsPacing() throws IOException {
+        ArmThrottlingGovernor governor = new ArmThrottlingGovernor(100, 1000, 1000);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(governor).build();
+
+        remainingReads = "1";
+        get(client, "/subscriptions/sub/resourceGroups");
+        remainingReads = null;
+        for (int i = 0; i < 3; ++i) {
+            get(client, "/subscriptions/sub/resourceGroups");
+        }
+        assertEquals(0, governor.getRemaining("sub", false));
+        assertEquals(3, governor.getPacedCount());
+    }
+
+    @Test
+    public void subscriptionIsReadFromThePath() {
+        assertEquals("abc", ArmThrottlingGovernor.subscriptionOf(
+                HttpUrl.parse("https://management.azure.com/subscriptions/abc/resourceGroups?api-version=1")));
+        assertNull(ArmThrottlingGovernor.subscriptionOf(HttpUrl.parse("https://management.azure.com/providers")));
+    }
+
+    private void get(OkHttpClient client, String path) throws IOException {
+        client.newCall(new Request.Builder().url(server.url(path)).build()).execute().close();
+    }
+}
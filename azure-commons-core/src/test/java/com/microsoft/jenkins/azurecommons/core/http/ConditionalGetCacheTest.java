@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConditionalGetCacheTest {
+    private static final String BODY = "{\"name\":\"rg\"}";
+
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private volatile String etag = "\"v1\"";
+
+    @Rule
+    public final TestHttpServer server = new TestHttpServer(exchange -> {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        exchange.getResponseHeaders().add("ETag", etag);
+        if (etag.equals(ifNoneMatch)) {
+            exchange.getResponseHeaders().add("Set-Cookie", "a=1");
+            exchange.getResponseHeaders().add("Set-Cookie", "b=2");
+            exchange.getResponseHeaders().add("Link", "<next>");
+            TestHttpServer.respond(exchange, 304, null);
+        } else {
+            fullResponses.incrementAndGet();
+            exchange.getResponseHeaders().add("Link", "<first>");
+            exchange.getResponseHeaders().add("Link", "<second>");
+            exchange.getResponseHeaders().add("Warning", "199 - \"cached\"");
+            TestHttpServer.respond(exchange, 200, BODY);
+        }
+    });
+
+    @Test
+    public void unchangedResourceIsServedFromTheCache() throws IOException {
+        ConditionalGetCache cache = new ConditionalGetCache(1024 * 1024, "SUB");
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(cache).build();
+
+        assertEquals(BODY, get(client, "/subscriptions/sub/resourceGroups/rg"));
+        assertEquals(BODY, get(client, "/subscriptions/sub/resourceGroups/rg"));
+        assertEquals(1, fullResponses.get());
+        assertEquals(1, cache.getRevalidatedCount());
+
+        etag = "\"v2\"";
+        assertEquals(BODY, get(client, "/subscriptions/sub/resourceGroups/rg"));
+        assertEquals(2, fullResponses.get());
+    }
+
+    @Test
+    public void revalidationHeadersKeepAllTheirValues() throws IOException {
+        ConditionalGetCache cache = new ConditionalGetCache(1024 * 1024, "sub");
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(cache).build();
+        get(client, "/subscriptions/sub/resourceGroups/rg");
+
+        Request request = new Request.Builder().url(server.url("/subscriptions/sub/resourceGroups/rg")).build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals(200, response.code());
+            assertEquals(Arrays.asList("a=1", "b=2"), response.headers("Set-Cookie"));
+            assertEquals(Collections.singletonList("<next>"), response.headers("Link"));
+            assertEquals(Collections.singletonList("199 - \"cached\""), response.headers("Warning"));
+            assertEquals(BODY, response.body().string());
+        }
+    }
+
+    @Test
+    public void otherSubscriptionsAndWritesAreNotCached() throws IOException {
+        ConditionalGetCache cache = new ConditionalGetCache(1024 * 1024, "sub");
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(cache).build();
+
+        get(client, "/subscriptions/other/resourceGroups/rg");
+        assertEquals(0, cache.size());
+
+        get(client, "/subscriptions/sub/resourceGroups/rg");
+        assertEquals(1, cache.size());
+        Request put = new Request.Builder()
+                .url(server.url("/subscriptions/sub/resourceGroups/rg"))
+                .put(RequestBody.create(null, BODY))
+                .build();
+        client.newCall(put).execute().close();
+        assertEquals(0, cache.size());
+    }
+
+    private String get(OkHttpClient client, String path) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(server.url(path)).build()).execute()) {
+            assertEquals(200, response.code());
+            return response.body().string();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class HostConcurrencyLimiterTest {
+    private static final int LIMIT = 2;
+    private static final int CALLS = 6;
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService callers = Executors.newFixedThreadPool(CALLS);
+
+    @Rule
+    public final TestHttpServer server = new TestHttpServer(exchange -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        TestHttpServer.respond(exchange, 200, "{}");
+    });
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void synchronousCallsAreBoundedPerHost() throws Exception {
+        HostConcurrencyLimiter limiter = new HostConcurrencyLimiter(LIMIT);
+        final OkHttpClient client = new OkHttpClient.Builder().addInterceptor(limiter).build();
+        final Request request = new Request.Builder().url(server.url("/subscriptions/sub")).build();
+
+        List<Future<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < CALLS; ++i) {
+            calls.add(callers.submit(() -> {
+                try (Response response = client.newCall(request).execute()) {
+                    return response.code();
+                }
+            }));
+        }
+        // the extra calls wait in the limiter while the first ones are held by the server
+        while (running.get() < LIMIT || limiter.getWaitingCount() < CALLS - LIMIT) {
+            Thread.yield();
+        }
+        release.countDown();
+        for (Future<Integer> call : calls) {
+            assertEquals(Integer.valueOf(200), call.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(LIMIT, maxRunning.get());
+        assertEquals(0, limiter.getWaitingCount());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.http;
+
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class RequestCoalescerTest {
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+
+    @Rule
+    public final TestHttpServer server = new TestHttpServer(exchange -> {
+        int count = requests.incrementAndGet();
+        try {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                release.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        TestHttpServer.respond(exchange, 200, "{\"count\":" + count + "}");
+    });
+
+    @Test
+    public void concurrentIdenticalGetsShareOneRequest() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(coalescer).build();
+
+        release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                results.add(pool.submit(() -> call(client, new Request.Builder().url(url()).build())));
+            }
+            // hold the shared request until the other three wait for it
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (coalescer.getWaitingCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.yield();
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("{\"count\":1}", result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, requests.get());
+        assertEquals(3, coalescer.getCoalescedCount());
+
+        assertEquals("{\"count\":2}", call(client, new Request.Builder().url(url()).build()));
+    }
+
+    @Test
+    public void writesAreNotCoalesced() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(coalescer).build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 2; ++i) {
+                results.add(pool.submit(() -> call(client,
+                        new Request.Builder().url(url()).post(RequestBody.create(null, "{}")).build())));
+            }
+            for (Future<String> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(2, requests.get());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void readAfterWriteDoesNotJoinAnEarlierRead() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(coalescer).build();
+
+        release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> before = pool.submit(() -> call(client, new Request.Builder().url(url()).build()));
+            awaitRequests(1);
+            call(client, new Request.Builder().url(url() + "?api-version=1").put(RequestBody.create(null, "{}"))
+                    .build());
+            Future<String> after = pool.submit(() -> call(client, new Request.Builder().url(url()).build()));
+            awaitRequests(3);
+            release.countDown();
+
+            assertEquals("{\"count\":1}", before.get(10, TimeUnit.SECONDS));
+            assertEquals("{\"count\":3}", after.get(10, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    private void awaitRequests(int count) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (requests.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+        assertEquals(count, requests.get());
+    }
+
+    private static String call(OkHttpClient client, Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            return response.body().string();
+        }
+    }
+
+    private String url() {
+        return server.url("/subscriptions/sub/resourceGroups/rg");
+    }
+}
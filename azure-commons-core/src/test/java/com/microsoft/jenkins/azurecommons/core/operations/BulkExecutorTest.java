@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.operations;
+
+import com.microsoft.rest.RestException;
+import okhttp3.ResponseBody;
+import org.junit.After;
+import org.junit.Test;
+import retrofit2.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkExecutorTest {
+    private final BulkExecutor executor = new BulkExecutor(8, 2, 3, 1);
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void concurrencyIsLimitedPerSubscription() throws Exception {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            items.add(i);
+        }
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger progress = new AtomicInteger();
+        BulkExecutor.Result<Integer, Integer> result = executor.<Integer, Integer>submit(items, "sub", item -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            Thread.sleep(5);
+            running.decrementAndGet();
+            return item * 2;
+        }, (item, error, completed, total) -> progress.incrementAndGet()).get(10, TimeUnit.SECONDS);
+
+        assertTrue(result.isSuccessful());
+        assertEquals(20, result.getSucceeded().size());
+        assertEquals(Integer.valueOf(38), result.getSucceeded().get(19));
+        assertEquals(2, maxRunning.get());
+        assertEquals(20, progress.get());
+    }
+
+    @Test
+    public void throttledOperationIsRetriedAndFailuresAreCollected() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        BulkExecutor.Result<String, String> result = executor.<String, String>submit(Arrays.asList("vm1", "vm2"),
+                "sub", item -> {
+                    if ("vm2".equals(item)) {
+                        throw new IllegalArgumentException("not found");
+                    }
+                    if (calls.incrementAndGet() < 2) {
+                        throw new RestException("throttled",
+                                Response.<ResponseBody>error(429, ResponseBody.create(null, "")));
+                    }
+                    return "deleted";
+                }, null).get(10, TimeUnit.SECONDS);
+
+        assertFalse(result.isSuccessful());
+        assertEquals("deleted", result.getSucceeded().get("vm1"));
+        assertTrue(result.getFailed().get("vm2") instanceof IllegalArgumentException);
+        assertEquals(1, executor.getThrottledCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateItemsAreRejected() {
+        executor.<String, String>submit(Arrays.asList("vm1", "vm2", "vm1"), "sub", item -> item, null);
+    }
+
+    @Test
+    public void shutdownFailsTheOperationsWaitingForARetry() throws Exception {
+        BulkExecutor slow = new BulkExecutor(1, 1, 3, TimeUnit.MINUTES.toMillis(1));
+        final CountDownLatch attempted = new CountDownLatch(1);
+        CompletableFuture<BulkExecutor.Result<String, String>> future = slow.<String, String>submit(
+                Collections.singletonList("vm1"), "sub", item -> {
+                    attempted.countDown();
+                    throw new RestException("unavailable",
+                            Response.<ResponseBody>error(503, ResponseBody.create(null, "")));
+                }, null);
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        while (slow.getRetriedCount() == 0) {
+            Thread.yield();
+        }
+
+        slow.shutdown();
+        BulkExecutor.Result<String, String> result = future.get(5, TimeUnit.SECONDS);
+        assertTrue(result.getFailed().get("vm1") instanceof RejectedExecutionException);
+
+        // the pools are not created again
+        result = slow.<String, String>submit(Collections.singletonList("vm2"), "sub", item -> item, null)
+                .get(5, TimeUnit.SECONDS);
+        assertTrue(result.getFailed().get("vm2") instanceof RejectedExecutionException);
+    }
+
+    @Test
+    public void emptyRequestCompletes() throws Exception {
+        assertTrue(executor.<String, String>submit(new ArrayList<String>(), "sub", item -> item, null)
+                .get(1, TimeUnit.SECONDS).isSuccessful());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.core.operations;
+
+import com.microsoft.azure.AzureEnvironment;
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.microsoft.jenkins.azurecommons.core.TestHttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LroPollerTest {
+    private final LroPoller poller = new LroPoller(1, 1, 20);
+
+    @After
+    public void tearDown() {
+        poller.shutdown();
+    }
+
+    @Test
+    public void pollsUntilDone() throws Exception {
+        final AtomicInteger polls = new AtomicInteger();
+        CompletableFuture<String> future = poller.submit(() -> polls.incrementAndGet() < 5
+                ? LroPoller.Status.<String>inProgress()
+                : LroPoller.Status.done("succeeded"));
+
+        assertEquals("succeeded", future.get(5, TimeUnit.SECONDS));
+        assertEquals(5, polls.get());
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void transientFailuresAreRetried() throws Exception {
+        final AtomicInteger polls = new AtomicInteger();
+        CompletableFuture<Integer> future = poller.submit(() -> {
+            if (polls.incrementAndGet() < LroPoller.MAX_CONSECUTIVE_FAILURES) {
+                throw new IOException("connection reset");
+            }
+            return LroPoller.Status.done(polls.get());
+        });
+
+        assertEquals(Integer.valueOf(LroPoller.MAX_CONSECUTIVE_FAILURES), future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        CompletableFuture<String> future = poller.submit(LroPoller.Status::<String>inProgress, 100);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The operation should time out");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertEquals(0, poller.getPendingCount());
+    }
+
+    @Test
+    public void shutdownFailsThePendingOperations() throws Exception {
+        LroPoller idle = new LroPoller(1, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+        CompletableFuture<String> future = idle.submit(LroPoller.Status::<String>inProgress);
+        assertEquals(1, idle.getPendingCount());
+
+        idle.shutdown();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("The pending operation should fail on shutdown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(0, idle.getPendingCount());
+
+        // the scheduler is not created again
+        CompletableFuture<String> late = idle.submit(() -> LroPoller.Status.done("late"));
+        try {
+            late.get(5, TimeUnit.SECONDS);
+            fail("The operations submitted after shutdown should be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(0, idle.getPendingCount());
+    }
+
+    @Test
+    public void armOperationDoesNotBlockTheScheduler() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try (TestHttpServer server = new TestHttpServer(exchange -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            TestHttpServer.respond(exchange, 200, "{\"status\":\"Succeeded\"}");
+        }).start()) {
+            AzureTokenCredentials credentials = new AzureTokenCredentials(AzureEnvironment.AZURE, "tenant") {
+                @Override
+                public String getToken(String resource) {
+                    return "token";
+                }
+            };
+            CompletableFuture<String> arm = poller.submit(LroPoller.armOperation(new OkHttpClient(), credentials,
+                    server.url("/subscriptions/sub/providers/Microsoft.Compute/operations/1")));
+
+            // the only scheduler thread keeps polling the other operations while the ARM request is pending
+            final AtomicInteger polls = new AtomicInteger();
+            CompletableFuture<String> local = poller.submit(() -> polls.incrementAndGet() < 3
+                    ? LroPoller.Status.<String>inProgress()
+                    : LroPoller.Status.done("local"));
+            assertEquals("local", local.get(5, TimeUnit.SECONDS));
+            assertFalse(arm.isDone());
+
+            release.countDown();
+            assertEquals("{\"status\":\"Succeeded\"}", arm.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void delayGrowsAndHonorsRetryAfter() {
+        long delay = poller.nextDelay(10, null);
+        assertTrue(delay >= 13 && delay <= 17);
+        assertEquals(20, poller.nextDelay(20, null), 2);
+        assertEquals(3000, poller.nextDelay(10, 3000L));
+    }
+}
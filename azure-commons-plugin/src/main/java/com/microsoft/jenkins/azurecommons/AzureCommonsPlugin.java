@@ -6,12 +6,49 @@
 
 package com.microsoft.jenkins.azurecommons;
 
+import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenExecutors;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenHttpClient;
+import com.microsoft.jenkins.azurecommons.core.http.SharedHttpPool;
+import com.microsoft.jenkins.azurecommons.core.operations.BulkExecutor;
+import com.microsoft.jenkins.azurecommons.core.operations.LroPoller;
+import com.microsoft.jenkins.azurecommons.remote.SSHSessionPool;
 import hudson.Plugin;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import jenkins.util.Timer;
 
 import java.util.Map;
 
 public class AzureCommonsPlugin extends Plugin {
 
+    /**
+     * Start the opt-in warm-up in the background once Jenkins is up.
+     */
+    @Initializer(after = InitMilestone.COMPLETED)
+    public static void warmUp() {
+        if (!AzureWarmUp.ENABLED) {
+            return;
+        }
+        Timer.get().submit(new Runnable() {
+            @Override
+            public void run() {
+                AzureWarmUp.run();
+            }
+        });
+    }
+
+    @Override
+    public void stop() throws Exception {
+        TokenExecutors.shutdown();
+        TokenHttpClient.shutdown();
+        AzureClientFactory.invalidateClientCache();
+        LroPoller.get().shutdown();
+        BulkExecutor.get().shutdown();
+        SharedHttpPool.shutdown();
+        SSHSessionPool.get().shutdown();
+    }
+
     /**
      * No-OP, first step of retiring analytics.
      */
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons;
+
+import com.microsoft.azure.credentials.AzureTokenCredentials;
+import com.microsoft.azure.management.Azure;
+import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pays the one-off costs of the first Azure step in the background after startup: the class loading of the Azure
+ * SDK, the environment resolution, the token acquisition and the subscription lookup of the credentials supplied by
+ * the {@link WarmUpCredentialsProvider} extensions.
+ * <p>
+ * The warm-up is disabled by default, enable it with
+ * {@code -Dcom.microsoft.jenkins.azurecommons.AzureWarmUp.enabled=true}.
+ */
+public final class AzureWarmUp {
+    private static final Logger LOGGER = Logger.getLogger(AzureWarmUp.class.getName());
+
+    static final boolean ENABLED = Boolean.getBoolean(AzureWarmUp.class.getName() + ".enabled");
+
+    private static final String[] PRELOADED_CLASSES = {
+            "com.microsoft.azure.management.Azure",
+            "com.microsoft.azure.management.resources.implementation.ResourceManager",
+            "com.microsoft.azure.serializer.AzureJacksonAdapter",
+            "com.microsoft.azure.AzureResponseBuilder",
+            "com.microsoft.azure.credentials.ApplicationTokenCredentials",
+            "com.microsoft.aad.adal4j.AuthenticationContext",
+            "com.microsoft.rest.RestClient",
+            "retrofit2.Retrofit",
+            "okhttp3.OkHttpClient",
+    };
+
+    /**
+     * Warm up the Azure SDK and the supplied credentials.
+     */
+    static void run() {
+        long start = System.nanoTime();
+        preloadClasses();
+        LOGGER.log(Level.FINE, "Azure SDK classes loaded in {0} ms", elapsedMillis(start));
+
+        List<TokenCredentialData> credentials = new ArrayList<>();
+        for (WarmUpCredentialsProvider provider : WarmUpCredentialsProvider.all()) {
+            try {
+                credentials.addAll(provider.getCredentials());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to get the credentials to warm up from " + provider, e);
+            }
+        }
+        LOGGER.log(Level.INFO, "Warming up {0} Azure credentials", credentials.size());
+
+        int warmed = 0;
+        for (TokenCredentialData data : credentials) {
+            long credentialStart = System.nanoTime();
+            try {
+                AzureTokenCredentials token = AzureClientFactory.createCredentials(data);
+                token.getToken(token.environment().managementEndpoint());
+                AzureClientFactory.getClient(data);
+                ++warmed;
+                LOGGER.log(Level.FINE, "Warmed up Azure credentials {0}/{1} in {2} ms",
+                        new Object[]{warmed, credentials.size(), elapsedMillis(credentialStart)});
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to warm up Azure credentials of type " + data.getType(), e);
+            }
+        }
+        LOGGER.log(Level.INFO, "Azure warm-up of {0}/{1} credentials completed in {2} ms",
+                new Object[]{warmed, credentials.size(), elapsedMillis(start)});
+    }
+
+    private static void preloadClasses() {
+        ClassLoader classLoader = AzureClientFactory.class.getClassLoader();
+        for (String className : PRELOADED_CLASSES) {
+            try {
+                Class.forName(className, true, classLoader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                LOGGER.log(Level.FINE, "Failed to preload " + className, e);
+            }
+        }
+        // builds the default configuration of the clients
+        Azure.configure();
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    private AzureWarmUp() {
+        // hide constructor
+    }
+}
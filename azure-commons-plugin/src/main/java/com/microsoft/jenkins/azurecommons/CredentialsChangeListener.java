@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCache;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.ItemGroup;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drops the cached Azure clients and tokens of the credentials that are updated or removed, so that the old secrets
+ * are not kept around until the cached clients and tokens expire.
+ * <p>
+ * The global credentials are saved on their own, the credentials of a folder are saved with the folder, which is
+ * saved for other reasons too, for example on every branch indexing of a multibranch project. The credentials of
+ * each saved store are remembered, and only the credentials replaced or removed since the previous save are
+ * dropped: a store updates its credentials by replacing them. The credentials are converted to the data of their
+ * clients by the {@link CredentialsDataResolver} extensions. Without any resolver, all the cached clients and tokens
+ * are dropped when a credential changes.
+ */
+@Extension
+public class CredentialsChangeListener extends SaveableListener {
+    private static final Logger LOGGER = Logger.getLogger(CredentialsChangeListener.class.getName());
+
+    /**
+     * The credentials of the stores by their owner when they were last saved.
+     */
+    private static final Map<Saveable, List<Credentials>> SAVED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+        List<Credentials> current = credentialsOf(o);
+        if (current == null) {
+            return;
+        }
+        List<Credentials> previous = SAVED.put(o, current);
+        List<Credentials> changed = changed(previous, current);
+        if (!changed.isEmpty()) {
+            invalidate(changed);
+        }
+    }
+
+    /**
+     * The credentials of the store owned by the saved object.
+     *
+     * @return the credentials, or {@code null} if the object does not own a credentials store.
+     */
+    @CheckForNull
+    private static List<Credentials> credentialsOf(Saveable o) {
+        if (o instanceof SystemCredentialsProvider) {
+            return credentialsOf(((SystemCredentialsProvider) o).getStore());
+        }
+        if (!(o instanceof ItemGroup) || o instanceof Jenkins) {
+            return null;
+        }
+        for (CredentialsStore store : CredentialsProvider.lookupStores((ItemGroup<?>) o)) {
+            if (store.getContext() == o) {
+                return credentialsOf(store);
+            }
+        }
+        return null;
+    }
+
+    private static List<Credentials> credentialsOf(CredentialsStore store) {
+        List<Credentials> credentials = new ArrayList<>();
+        for (Domain domain : store.getDomains()) {
+            credentials.addAll(store.getCredentials(domain));
+        }
+        return credentials;
+    }
+
+    /**
+     * Find the credentials replaced or removed since the previous save.
+     *
+     * @param previous the credentials at the previous save, or {@code null} if the store has not been saved since
+     *                 startup, then all the current credentials may have changed.
+     * @param current  the credentials now.
+     * @return the credentials that are no longer in the store, and the ones added to it.
+     */
+    static List<Credentials> changed(@CheckForNull List<Credentials> previous, List<Credentials> current) {
+        if (previous == null) {
+            return new ArrayList<>(current);
+        }
+        Set<Credentials> before = Collections.newSetFromMap(new IdentityHashMap<Credentials, Boolean>());
+        before.addAll(previous);
+        Set<Credentials> after = Collections.newSetFromMap(new IdentityHashMap<Credentials, Boolean>());
+        after.addAll(current);
+        List<Credentials> changed = new ArrayList<>();
+        for (Credentials credentials : previous) {
+            if (!after.contains(credentials)) {
+                changed.add(credentials);
+            }
+        }
+        for (Credentials credentials : current) {
+            if (!before.contains(credentials)) {
+                changed.add(credentials);
+            }
+        }
+        return changed;
+    }
+
+    private static void invalidate(List<Credentials> changed) {
+        List<CredentialsDataResolver> resolvers = CredentialsDataResolver.all();
+        if (resolvers.isEmpty()) {
+            AzureClientFactory.invalidateClientCache();
+            TokenCache.get().invalidateAll();
+            return;
+        }
+        for (Credentials credentials : changed) {
+            for (CredentialsDataResolver resolver : resolvers) {
+                TokenCredentialData data;
+                try {
+                    data = resolver.resolve(credentials);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to resolve the credential data with " + resolver, e);
+                    continue;
+                }
+                if (data != null) {
+                    AzureClientFactory.invalidateClients(data);
+                    TokenCache.get().invalidate(data);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Converts the Jenkins credentials of a plugin to the credential data of its Azure clients, so that only the cached
+ * clients and tokens of the changed credentials are dropped.
+ *
+ * @see CredentialsChangeListener
+ */
+public abstract class CredentialsDataResolver implements ExtensionPoint {
+    /**
+     * The credential data the clients are built from.
+     *
+     * @param credentials the Jenkins credentials.
+     * @return the credential data, or {@code null} if the credentials are not handled by this resolver.
+     */
+    @CheckForNull
+    public abstract TokenCredentialData resolve(Credentials credentials);
+
+    public static ExtensionList<CredentialsDataResolver> all() {
+        return ExtensionList.lookup(CredentialsDataResolver.class);
+    }
+}
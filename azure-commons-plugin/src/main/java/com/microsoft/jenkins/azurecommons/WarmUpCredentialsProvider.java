@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons;
+
+import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+
+import java.util.List;
+
+/**
+ * Supplies the credentials whose tokens and clients are created by the warm-up at startup.
+ *
+ * @see AzureWarmUp
+ */
+public abstract class WarmUpCredentialsProvider implements ExtensionPoint {
+    /**
+     * The credentials to warm up. Called on a background thread once Jenkins is up.
+     *
+     * @return the credentials to warm up.
+     */
+    public abstract List<TokenCredentialData> getCredentials();
+
+    public static ExtensionList<WarmUpCredentialsProvider> all() {
+        return ExtensionList.lookup(WarmUpCredentialsProvider.class);
+    }
+}
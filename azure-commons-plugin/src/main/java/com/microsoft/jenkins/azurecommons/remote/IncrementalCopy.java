@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+/**
+ * How {@link SSHClient} decides that a local file is already on the remote host and does not need to be copied.
+ */
+public enum IncrementalCopy {
+    /**
+     * Always copy the files.
+     */
+    OFF,
+    /**
+     * Skip the files whose remote copy has the same size and modification time. The modification time of the copied
+     * files is preserved so that they are skipped the next time.
+     */
+    SIZE_AND_MTIME,
+    /**
+     * Skip the files whose remote copy has the same size and SHA-256 digest, whatever their modification time. This
+     * skips the files regenerated with identical contents, at the cost of reading the files on both sides. The
+     * remote digests are computed with {@code sha256sum} in one command for all the files.
+     */
+    CHECKSUM
+}
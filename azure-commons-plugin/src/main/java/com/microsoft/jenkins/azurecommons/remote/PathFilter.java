@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the files of a directory tree by their path relative to the root of the tree, with comma separated
+ * Ant-style glob patterns such as {@code **}{@code /*.jar, lib/}.
+ * <ul>
+ * <li>{@code *} matches any characters in a path segment, {@code ?} matches one character.</li>
+ * <li>{@code **} matches any number of path segments.</li>
+ * <li>A pattern ending with {@code /} matches everything under the directory.</li>
+ * </ul>
+ * The paths are separated by {@code /} whatever the local platform.
+ */
+final class PathFilter {
+    static final PathFilter ALL = new PathFilter(null, null);
+
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+
+    PathFilter(String includes, String excludes) {
+        this.includes = compile(includes);
+        this.excludes = compile(excludes);
+    }
+
+    boolean matches(String relativePath) {
+        return (includes.isEmpty() || matchesAny(includes, relativePath)) && !matchesAny(excludes, relativePath);
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String path) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern> compile(String patterns) {
+        List<Pattern> result = new ArrayList<>();
+        if (StringUtils.isBlank(patterns)) {
+            return result;
+        }
+        for (String glob : patterns.split(",")) {
+            glob = glob.trim().replace('\\', '/');
+            if (glob.isEmpty()) {
+                continue;
+            }
+            if (glob.endsWith("/")) {
+                glob += "**";
+            }
+            result.add(Pattern.compile(toRegex(glob)));
+        }
+        return result;
+    }
+
+    static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            if (glob.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += "**/".length();
+                continue;
+            } else if (glob.startsWith("**", i)) {
+                regex.append(".*");
+                i += "**".length();
+                continue;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+            ++i;
+        }
+        return regex.toString();
+    }
+}
@@ -6,15 +6,19 @@
 package com.microsoft.jenkins.azurecommons.remote;
 
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
 import com.jcraft.jsch.SftpException;
 import com.microsoft.jenkins.azurecommons.Constants;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.util.Secret;
+import org.apache.commons.compress.utils.IOUtils;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -23,12 +27,44 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * An SSH client used to interact with a remote SSH server.
  */
 public class SSHClient implements AutoCloseable {
+    /**
+     * Keep the batched commands well below the argument size limit of the remote system.
+     */
+    static final int MAX_COMMAND_LENGTH = 32 * 1024;
+
+    static final int SHA256_HEX_LENGTH = 64;
+
     private final String host;
     private final int port;
     private final UsernameAuth credentials;
@@ -36,6 +72,16 @@ public class SSHClient implements AutoCloseable {
     private final JSch jsch;
     private Session session;
 
+    private boolean pooling = SSHSessionPool.isEnabled();
+    private SSHSessionPool.Key pooledKey;
+    private boolean reusable;
+
+    private boolean reuseSftpChannels = SftpChannelPool.ENABLED;
+
+    private TransferMode transferMode = TransferMode.SFTP;
+    private IncrementalCopy incrementalCopy = IncrementalCopy.OFF;
+    private Boolean tarAvailable;
+
     private PrintStream logger;
 
     public SSHClient(String host, int port, String username, String password) throws JSchException {
@@ -99,6 +145,61 @@ public class SSHClient implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Enable or disable the reuse of the SSH sessions through the {@link SSHSessionPool}.
+     * <p>
+     * With pooling enabled, {@link #connect()} takes an authenticated session to the same host with the same
+     * credentials from the pool if there's one, and {@link #close()} returns the session to the pool.
+     *
+     * @param enabled whether to pool the sessions.
+     * @return the current SSH client with the pooling updated.
+     */
+    public SSHClient withSessionPool(boolean enabled) {
+        this.pooling = enabled;
+        return this;
+    }
+
+    /**
+     * Enable or disable the reuse of the SFTP channels across the file transfers.
+     * <p>
+     * With the reuse enabled, the SFTP channels are kept open after a transfer, and a few of them can be used
+     * concurrently by the transfers on the same session. This saves the channel setup on every copy, which dominates
+     * the copy of small files.
+     *
+     * @param enabled whether to reuse the SFTP channels.
+     * @return the current SSH client with the channel reuse updated.
+     */
+    public SSHClient withSftpChannelReuse(boolean enabled) {
+        this.reuseSftpChannels = enabled;
+        return this;
+    }
+
+    /**
+     * Set how the directory trees are copied by {@link #copyDirectoryTo(File, String, String, String)} and
+     * {@link #copyDirectoryFrom(String, File, String, String)}.
+     * <p>
+     * The tar modes fall back to SFTP if the remote host has no {@code tar} command.
+     *
+     * @param mode the transfer mode.
+     * @return the current SSH client with the transfer mode updated.
+     */
+    public SSHClient withTransferMode(TransferMode mode) {
+        this.transferMode = mode;
+        return this;
+    }
+
+    /**
+     * Set whether {@link #copyTo(File, String)} and {@link #copyDirectoryTo(File, String, String, String)} skip the
+     * files that are unchanged on the remote host.
+     *
+     * @param mode how the unchanged files are detected.
+     * @return the current SSH client with the incremental copy updated.
+     */
+    public SSHClient withIncrementalCopy(IncrementalCopy mode) {
+        this.incrementalCopy = mode;
+        return this;
+    }
+
     /**
      * Establish a connection with the SSH server.
      * <p>
@@ -120,16 +221,34 @@ public class SSHClient implements AutoCloseable {
         if (session != null && session.isConnected()) {
             throw new JSchException("SSH session is already connected, close previous session first.");
         }
-        session = jsch.getSession(credentials.getUsername(), host, port);
+        if (pooling) {
+            SSHSessionPool.Key key = new SSHSessionPool.Key(
+                    host, port, credentials.getUsername(), credentials.getFingerprint());
+            session = SSHSessionPool.get().borrow(key, new SSHSessionPool.SessionFactory() {
+                @Override
+                public Session create() throws JSchException {
+                    return openSession();
+                }
+            });
+            pooledKey = key;
+            reusable = true;
+        } else {
+            session = openSession();
+        }
+        return this;
+    }
+
+    private Session openSession() throws JSchException {
+        Session newSession = jsch.getSession(credentials.getUsername(), host, port);
         Properties config = new Properties();
         config.put("StrictHostKeyChecking", "no");
-        session.setConfig(config);
+        newSession.setConfig(config);
         if (credentials instanceof UsernamePasswordAuth) {
-            session.setPassword(
+            newSession.setPassword(
                     ((UsernamePasswordAuth) credentials).getPassword());
         }
-        session.connect();
-        return this;
+        newSession.connect();
+        return newSession;
     }
 
     /**
@@ -140,15 +259,238 @@ public class SSHClient implements AutoCloseable {
      * @throws JSchException if the underlying SSH session fails.
      */
     public void copyTo(final File sourceFile, final String remotePath) throws JSchException {
-        log("copy file {0} to {1}:{2}", sourceFile, host, remotePath);
+        String target = remotePath;
+        if (incrementalCopy != IncrementalCopy.OFF) {
+            // the file is uploaded into the remote path if it is a directory
+            SftpATTRS attrs = stat(remotePath);
+            if (attrs != null && attrs.isDir()) {
+                target = remotePath(remotePath, sourceFile.getName());
+                attrs = stat(target);
+            }
+            if (isUnchanged(sourceFile, target, attrs)) {
+                log("skip unchanged file %s", sourceFile);
+                return;
+            }
+        }
+        final String remoteFile = target;
+        log("copy file {0} to {1}:{2}", sourceFile, host, remoteFile);
+        withChannelSftp(new ChannelSftpConsumer() {
+            @Override
+            public void apply(ChannelSftp channel) throws JSchException, SftpException {
+                put(channel, sourceFile, remoteFile);
+            }
+        });
+    }
+
+    /**
+     * Upload the file, and preserve its modification time for the incremental copies.
+     */
+    private void put(ChannelSftp channel, File sourceFile, String remotePath) throws SftpException {
+        channel.put(sourceFile.getAbsolutePath(), remotePath);
+        if (incrementalCopy != IncrementalCopy.OFF) {
+            channel.setMtime(remotePath, (int) TimeUnit.MILLISECONDS.toSeconds(sourceFile.lastModified()));
+        }
+    }
+
+    /**
+     * Get the attributes of the remote path.
+     *
+     * @return the attributes, or {@code null} if the path does not exist.
+     */
+    private SftpATTRS stat(final String remotePath) throws JSchException {
+        final SftpATTRS[] attrs = new SftpATTRS[1];
         withChannelSftp(new ChannelSftpConsumer() {
             @Override
             public void apply(ChannelSftp channel) throws JSchException, SftpException {
-                channel.put(sourceFile.getAbsolutePath(), remotePath);
+                try {
+                    attrs[0] = channel.stat(remotePath);
+                } catch (SftpException e) {
+                    if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                        throw e;
+                    }
+                }
+            }
+        });
+        return attrs[0];
+    }
+
+    private boolean isUnchanged(File sourceFile, String remoteFile, SftpATTRS attrs) throws JSchException {
+        Map<String, SftpATTRS> remoteFiles = new HashMap<>();
+        if (attrs != null) {
+            remoteFiles.put(remoteFile, attrs);
+        }
+        Map<String, File> localFiles = Collections.singletonMap(remoteFile, sourceFile);
+        try {
+            return changedFiles(localFiles, "", remoteFiles).isEmpty();
+        } catch (IOException e) {
+            throw new JSchException("Failed to compare " + sourceFile + " with " + remoteFile, e);
+        }
+    }
+
+    private List<String> changedFiles(Map<String, File> localFiles, final String remoteDir,
+                                      Map<String, SftpATTRS> remoteFiles) throws JSchException, IOException {
+        return changedFiles(incrementalCopy, localFiles, remoteFiles, new RemoteChecksums() {
+            @Override
+            public Map<String, String> of(List<String> files) throws JSchException, IOException {
+                return remoteChecksums(remoteDir, files);
             }
         });
     }
 
+    /**
+     * Find the local files that differ from their remote copy according to the incremental copy mode.
+     *
+     * @param mode        how the unchanged files are detected.
+     * @param localFiles  the local files by their remote path relative to the remote directory.
+     * @param remoteFiles the attributes of the existing remote files by their relative path.
+     * @param checksums   computes the digests of the remote files of the same size as the local ones.
+     * @return the relative paths of the files to copy, sorted.
+     */
+    static List<String> changedFiles(IncrementalCopy mode, Map<String, File> localFiles,
+                                     Map<String, SftpATTRS> remoteFiles, RemoteChecksums checksums)
+            throws JSchException, IOException {
+        List<String> changed = new ArrayList<>();
+        List<String> sameSize = new ArrayList<>();
+        for (Map.Entry<String, File> entry : localFiles.entrySet()) {
+            SftpATTRS attrs = remoteFiles.get(entry.getKey());
+            File localFile = entry.getValue();
+            if (attrs == null || attrs.getSize() != localFile.length()) {
+                changed.add(entry.getKey());
+            } else if (mode == IncrementalCopy.CHECKSUM) {
+                sameSize.add(entry.getKey());
+            } else if (attrs.getMTime() != TimeUnit.MILLISECONDS.toSeconds(localFile.lastModified())) {
+                changed.add(entry.getKey());
+            }
+        }
+        if (!sameSize.isEmpty()) {
+            Map<String, String> digests = checksums.of(sameSize);
+            for (String file : sameSize) {
+                String local = com.google.common.io.Files.asByteSource(localFiles.get(file))
+                        .hash(Hashing.sha256()).toString();
+                if (!local.equals(digests.get(file))) {
+                    changed.add(file);
+                }
+            }
+        }
+        Collections.sort(changed);
+        return changed;
+    }
+
+    /**
+     * Compute the SHA-256 digests of the remote files with one {@code sha256sum} command, fed with the file names on
+     * its standard input so that the number of files is not bounded by the command length.
+     *
+     * @return the digests by file path, missing for the files that could not be read.
+     */
+    private Map<String, String> remoteChecksums(String remoteDir, List<String> files)
+            throws JSchException, IOException {
+        StringBuilder input = new StringBuilder();
+        for (String file : files) {
+            input.append(file).append('\0');
+        }
+        String command = (remoteDir.isEmpty() ? "" : "cd " + quote(remoteDir) + " && ") + "xargs -0 sha256sum --";
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        byte[] output;
+        try {
+            channel.setCommand(command);
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            channel.setErrStream(error);
+            OutputStream remoteIn = channel.getOutputStream();
+            InputStream remoteOut = channel.getInputStream();
+            channel.connect();
+            output = exchange(input.toString().getBytes(Constants.UTF8), remoteIn, remoteOut);
+            int exitCode = waitForClose(channel);
+            if (exitCode != 0) {
+                // some files could not be read, they are copied again
+                log("sha256sum exited with code %d: %s", exitCode, error.toString(Constants.UTF8.name()));
+            }
+        } finally {
+            channel.disconnect();
+        }
+        return parseChecksums(new String(output, Constants.UTF8));
+    }
+
+    /**
+     * Feed the input to a remote command and read its output at the same time. The output comes back while the input
+     * is written, and the session stops reading the input once the buffer of the unread output is full, so writing
+     * all the input before reading the output would hang on large inputs.
+     *
+     * @param input     the input of the command, the stream is closed once it is written.
+     * @param remoteIn  the standard input of the command.
+     * @param remoteOut the standard output of the command.
+     * @return the output of the command.
+     * @throws IOException if the input cannot be written or the output cannot be read.
+     */
+    static byte[] exchange(final byte[] input, final OutputStream remoteIn, InputStream remoteOut)
+            throws IOException {
+        ExecutorService writer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ssh-input-writer-%d").setDaemon(true).build());
+        try {
+            Future<Void> written = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    try (OutputStream out = remoteIn) {
+                        out.write(input);
+                    }
+                    return null;
+                }
+            });
+            byte[] output = IOUtils.toByteArray(remoteOut);
+            try {
+                written.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing the command input", e);
+            }
+            return output;
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Parse the output of {@code sha256sum}.
+     * <p>
+     * The lines are {@code <digest>  <path>}, or {@code <digest> *<path>} in binary mode. The lines of the paths
+     * with a backslash or a line break start with a backslash, and these characters are escaped in the path.
+     *
+     * @return the digests by file path.
+     */
+    static Map<String, String> parseChecksums(String output) {
+        Map<String, String> digests = new HashMap<>();
+        for (String line : output.split("\n")) {
+            int offset = line.startsWith("\\") ? 1 : 0;
+            if (line.length() <= offset + SHA256_HEX_LENGTH + 2 || line.charAt(offset + SHA256_HEX_LENGTH) != ' ') {
+                continue;
+            }
+            String path = line.substring(offset + SHA256_HEX_LENGTH + 2);
+            digests.put(offset == 0 ? path : unescape(path), line.substring(offset, offset + SHA256_HEX_LENGTH));
+        }
+        return digests;
+    }
+
+    private static String unescape(String path) {
+        StringBuilder builder = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); ++i) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                char next = path.charAt(++i);
+                if (next == 'n') {
+                    c = '\n';
+                } else if (next == 'r') {
+                    c = '\r';
+                } else {
+                    c = next;
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
     /**
      * Copy the contents from the {@code InputStream} to the remote path.
      *
@@ -206,7 +548,421 @@ public class SSHClient implements AutoCloseable {
         });
     }
 
+    /**
+     * Copy a local directory tree to the remote directory.
+     *
+     * @see #copyDirectoryTo(File, String, String, String)
+     */
+    public TransferStats copyDirectoryTo(File sourceDir, String remoteDir) throws JSchException, IOException {
+        return copyDirectoryTo(sourceDir, remoteDir, null, null);
+    }
+
+    /**
+     * Copy the files of a local directory tree to the remote directory.
+     * <p>
+     * The remote directories are created first in one command, then the files are copied concurrently on a few SFTP
+     * channels of the session.
+     *
+     * @param sourceDir the local directory.
+     * @param remoteDir the target remote directory, can be either absolute or relative to the user home. It is
+     *                  created if it does not exist.
+     * @param includes  comma separated glob patterns of the paths to copy relative to the source directory, such as
+     *                  {@code **}{@code /*.jar}, or {@code null} to copy all the files.
+     * @param excludes  comma separated glob patterns of the paths not to copy, may be {@code null}.
+     * @return the figures of the copy.
+     * @throws JSchException if the underlying SSH session fails.
+     * @throws IOException   if the local directory cannot be read or the remote directories cannot be created.
+     */
+    public TransferStats copyDirectoryTo(final File sourceDir, final String remoteDir,
+                                         String includes, String excludes) throws JSchException, IOException {
+        long start = System.currentTimeMillis();
+        PathFilter filter = new PathFilter(includes, excludes);
+        List<String> files = listLocalFiles(sourceDir, filter);
+        int total = files.size();
+        if (incrementalCopy != IncrementalCopy.OFF && !files.isEmpty()) {
+            Map<String, File> localFiles = new HashMap<>();
+            for (String file : files) {
+                localFiles.put(file, new File(sourceDir, file));
+            }
+            files = changedFiles(localFiles, remoteDir, listRemoteFilesIfExists(remoteDir, filter));
+        }
+        int skipped = total - files.size();
+        if (useTar()) {
+            return tarTo(sourceDir, files, remoteDir, skipped, start);
+        }
+        makeRemoteDirectories(remoteDir, files);
+        List<ChannelSftpConsumer> transfers = new ArrayList<>();
+        long bytes = 0;
+        for (final String file : files) {
+            final File localFile = new File(sourceDir, file);
+            bytes += localFile.length();
+            transfers.add(new ChannelSftpConsumer() {
+                @Override
+                public void apply(ChannelSftp channel) throws JSchException, SftpException {
+                    put(channel, localFile, remotePath(remoteDir, file));
+                }
+            });
+        }
+        transferInParallel(transfers);
+        TransferStats stats = new TransferStats(files.size(), skipped, bytes, System.currentTimeMillis() - start);
+        log("copied directory %s to %s:%s, %s", sourceDir, host, remoteDir, stats);
+        return stats;
+    }
+
+    /**
+     * Copy a remote directory tree to the local directory.
+     *
+     * @see #copyDirectoryFrom(String, File, String, String)
+     */
+    public TransferStats copyDirectoryFrom(String remoteDir, File destDir) throws JSchException, IOException {
+        return copyDirectoryFrom(remoteDir, destDir, null, null);
+    }
+
+    /**
+     * Copy the files of a remote directory tree to the local directory.
+     * <p>
+     * The files are copied concurrently on a few SFTP channels of the session.
+     *
+     * @param remoteDir the remote directory, can be either absolute or relative to the user home.
+     * @param destDir   the local target directory, created if it does not exist.
+     * @param includes  comma separated glob patterns of the paths to copy relative to the remote directory, such as
+     *                  {@code **}{@code /*.log}, or {@code null} to copy all the files.
+     * @param excludes  comma separated glob patterns of the paths not to copy, may be {@code null}.
+     * @return the figures of the copy.
+     * @throws JSchException if the underlying SSH session fails.
+     * @throws IOException   if a remote file is outside of the local directory once resolved, or the local
+     *                       directories cannot be created.
+     */
+    public TransferStats copyDirectoryFrom(final String remoteDir, final File destDir,
+                                           String includes, String excludes) throws JSchException, IOException {
+        long start = System.currentTimeMillis();
+        PathFilter filter = new PathFilter(includes, excludes);
+        if (useTar()) {
+            return tarFrom(remoteDir, destDir, filter, start);
+        }
+        String root = destDir.getCanonicalPath() + File.separator;
+        Map<String, SftpATTRS> files = listRemoteFiles(remoteDir, filter);
+        List<ChannelSftpConsumer> transfers = new ArrayList<>();
+        long bytes = 0;
+        for (Map.Entry<String, SftpATTRS> entry : files.entrySet()) {
+            final String file = entry.getKey();
+            final File localFile = new File(destDir, file);
+            if (!localFile.getCanonicalPath().startsWith(root)) {
+                throw new IOException("Remote file " + file + " is outside of " + destDir);
+            }
+            File parent = localFile.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent);
+            }
+            bytes += entry.getValue().getSize();
+            transfers.add(new ChannelSftpConsumer() {
+                @Override
+                public void apply(ChannelSftp channel) throws JSchException, SftpException {
+                    channel.get(remotePath(remoteDir, file), localFile.getAbsolutePath());
+                }
+            });
+        }
+        transferInParallel(transfers);
+        TransferStats stats = new TransferStats(files.size(), bytes, System.currentTimeMillis() - start);
+        log("copied directory %s:%s to %s, %s", host, remoteDir, destDir, stats);
+        return stats;
+    }
+
+    /**
+     * Whether the directories are copied through the remote {@code tar}, which is looked up once per client.
+     */
+    private boolean useTar() throws JSchException, IOException {
+        if (!transferMode.isTar()) {
+            return false;
+        }
+        if (tarAvailable == null) {
+            try {
+                execRemote("command -v tar", false, true);
+                tarAvailable = true;
+            } catch (ExitStatusException e) {
+                log("tar is not available on %s, copy the files with SFTP", host);
+                tarAvailable = false;
+            }
+        }
+        return tarAvailable;
+    }
+
+    /**
+     * Stream the files as a tar archive to {@code tar -x} on the remote host.
+     */
+    private TransferStats tarTo(File sourceDir, List<String> files, String remoteDir, int skipped, long start)
+            throws JSchException, IOException {
+        String command = String.format("mkdir -p -- %1$s && tar -x%2$s -f - -C %1$s",
+                quote(remoteDir), transferMode.isCompressed() ? "z" : "");
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        try {
+            channel.setCommand(command);
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            channel.setErrStream(error);
+            OutputStream remoteIn = channel.getOutputStream();
+            channel.connect();
+            long bytes;
+            try (OutputStream out = transferMode.isCompressed()
+                    ? new GZIPOutputStream(remoteIn, Constants.READ_BUFFER_SIZE)
+                    : remoteIn) {
+                bytes = TarStreams.write(sourceDir, files, out);
+            }
+            waitForExit(channel, error);
+            TransferStats stats = new TransferStats(
+                    files.size(), skipped, bytes, System.currentTimeMillis() - start);
+            log("copied directory %s to %s:%s with tar, %s", sourceDir, host, remoteDir, stats);
+            return stats;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    /**
+     * Extract the tar archive streamed from {@code tar -c} on the remote host.
+     */
+    private TransferStats tarFrom(String remoteDir, File destDir, PathFilter filter, long start)
+            throws JSchException, IOException {
+        String command = String.format("tar -c%s -f - -C %s .",
+                transferMode.isCompressed() ? "z" : "", quote(remoteDir));
+        ChannelExec channel = (ChannelExec) session.openChannel("exec");
+        try {
+            channel.setCommand(command);
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            channel.setErrStream(error);
+            InputStream remoteOut = channel.getInputStream();
+            channel.connect();
+            TransferStats stats;
+            try (InputStream in = transferMode.isCompressed()
+                    ? new GZIPInputStream(remoteOut, Constants.READ_BUFFER_SIZE)
+                    : remoteOut) {
+                stats = TarStreams.extract(in, destDir, filter, start);
+                // read the end of the archive so that the remote command can exit
+                IOUtils.skip(in, Long.MAX_VALUE);
+            }
+            waitForExit(channel, error);
+            log("copied directory %s:%s to %s with tar, %s", host, remoteDir, destDir, stats);
+            return stats;
+        } finally {
+            channel.disconnect();
+        }
+    }
+
+    private void waitForExit(ChannelExec channel, ByteArrayOutputStream error) throws JSchException, IOException {
+        int exitCode = waitForClose(channel);
+        if (exitCode != 0) {
+            throw new IOException(String.format("Remote tar exited with code %d: %s",
+                    exitCode, error.toString(Constants.UTF8.name())));
+        }
+    }
+
+    private static int waitForClose(ChannelExec channel) throws JSchException {
+        final int waitPeriod = 50;
+        while (!channel.isClosed()) {
+            try {
+                Thread.sleep(waitPeriod);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JSchException("Interrupted while waiting for the remote command", e);
+            }
+        }
+        return channel.getExitStatus();
+    }
+
+    /**
+     * List the regular files under the local directory.
+     *
+     * @return the paths of the files relative to the directory, separated by {@code /}.
+     */
+    static List<String> listLocalFiles(File dir, final PathFilter filter) throws IOException {
+        final Path root = dir.toPath();
+        final List<String> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    String relative = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (filter.matches(relative)) {
+                        files.add(relative);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * List the regular files under the remote directory.
+     *
+     * @return the attributes of the files by their path relative to the directory.
+     */
+    private Map<String, SftpATTRS> listRemoteFiles(final String remoteDir, final PathFilter filter)
+            throws JSchException {
+        final Map<String, SftpATTRS> files = new TreeMap<>();
+        withChannelSftp(new ChannelSftpConsumer() {
+            @Override
+            public void apply(ChannelSftp channel) throws JSchException, SftpException {
+                Deque<String> directories = new ArrayDeque<>();
+                directories.add("");
+                while (!directories.isEmpty()) {
+                    String directory = directories.poll();
+                    for (Object item : channel.ls(remotePath(remoteDir, directory))) {
+                        ChannelSftp.LsEntry entry = (ChannelSftp.LsEntry) item;
+                        String name = entry.getFilename();
+                        if (".".equals(name) || "..".equals(name)) {
+                            continue;
+                        }
+                        String relative = directory.isEmpty() ? name : directory + "/" + name;
+                        if (entry.getAttrs().isDir()) {
+                            directories.add(relative);
+                        } else if (entry.getAttrs().isReg() && filter.matches(relative)) {
+                            files.put(relative, entry.getAttrs());
+                        }
+                    }
+                }
+            }
+        });
+        return files;
+    }
+
+    /**
+     * List the regular files under the remote directory, which may not exist yet.
+     */
+    private Map<String, SftpATTRS> listRemoteFilesIfExists(String remoteDir, PathFilter filter)
+            throws JSchException {
+        try {
+            return listRemoteFiles(remoteDir, filter);
+        } catch (JSchException e) {
+            if (e.getCause() instanceof SftpException
+                    && ((SftpException) e.getCause()).id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return Collections.emptyMap();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Create the remote directory and the parent directories of the files in as few commands as possible.
+     */
+    private void makeRemoteDirectories(String remoteDir, Collection<String> files) throws JSchException, IOException {
+        Set<String> directories = new TreeSet<>();
+        directories.add(remoteDir);
+        for (String file : files) {
+            int slash = file.lastIndexOf('/');
+            if (slash > 0) {
+                directories.add(remotePath(remoteDir, file.substring(0, slash)));
+            }
+        }
+        StringBuilder command = new StringBuilder();
+        for (String directory : directories) {
+            if (command.length() > MAX_COMMAND_LENGTH) {
+                execMkdirs(command.toString());
+                command.setLength(0);
+            }
+            command.append(' ').append(quote(directory));
+        }
+        execMkdirs(command.toString());
+    }
+
+    private void execMkdirs(String directories) throws JSchException, IOException {
+        try {
+            execRemote("mkdir -p --" + directories, false, true);
+        } catch (ExitStatusException e) {
+            throw new IOException("Failed to create the remote directories: " + e.getOutput(), e);
+        }
+    }
+
+    /**
+     * Run the transfers concurrently on the SFTP channels of the session. All the transfers stop at the first failure.
+     */
+    private void transferInParallel(List<ChannelSftpConsumer> transfers) throws JSchException {
+        if (transfers.isEmpty()) {
+            return;
+        }
+        final SftpChannelPool pool = reuseSftpChannels
+                ? SftpChannelPool.of(session)
+                : new SftpChannelPool(SftpChannelPool.MAX_CHANNELS);
+        int parallelism = Math.min(pool.getMaxChannels(), transfers.size());
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("sftp-transfer-" + host + "-%d").setDaemon(true).build());
+        final AtomicBoolean failed = new AtomicBoolean();
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (final ChannelSftpConsumer transfer : transfers) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws JSchException {
+                        if (!failed.get()) {
+                            try {
+                                withChannelSftp(pool, transfer);
+                            } catch (JSchException | RuntimeException e) {
+                                failed.set(true);
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            JSchException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = new JSchException("Failed to transfer the files", e.getCause());
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSchException("Interrupted while transferring the files", e);
+        } finally {
+            executor.shutdownNow();
+            if (!reuseSftpChannels) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    static String remotePath(String directory, String relative) {
+        if (relative.isEmpty()) {
+            return directory;
+        } else if (directory.isEmpty()) {
+            return relative;
+        }
+        return directory.endsWith("/") ? directory + relative : directory + "/" + relative;
+    }
+
+    /**
+     * Quote the argument for the remote POSIX shell.
+     */
+    static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    private void withChannelSftp(SftpChannelPool pool, ChannelSftpConsumer consumer) throws JSchException {
+        ChannelSftp channel = pool.acquire(session);
+        try {
+            consumer.apply(channel);
+        } catch (SftpException e) {
+            throw new JSchException("sftp error", e);
+        } finally {
+            pool.release(channel);
+        }
+    }
+
     protected void withChannelSftp(ChannelSftpConsumer consumer) throws JSchException {
+        if (reuseSftpChannels) {
+            withChannelSftp(SftpChannelPool.of(session), consumer);
+            return;
+        }
         ChannelSftp channel = null;
         try {
             channel = (ChannelSftp) session.openChannel("sftp");
@@ -356,7 +1112,9 @@ public class SSHClient implements AutoCloseable {
      */
     public SSHClient forwardSSH(String remoteHost, int remotePort, UsernameAuth sshCredentials) throws JSchException {
         int localPort = session.setPortForwardingL(0, remoteHost, remotePort);
-        return new SSHClient("127.0.0.1", localPort, sshCredentials).withLogger(logger);
+        // the forwarding lives as long as the session, which must not be handed out to another client
+        reusable = false;
+        return new SSHClient("127.0.0.1", localPort, sshCredentials).withLogger(logger).withSessionPool(false);
     }
 
     public String getHost() {
@@ -378,7 +1136,13 @@ public class SSHClient implements AutoCloseable {
     @Override
     public void close() {
         if (this.session != null) {
-            this.session.disconnect();
+            if (pooledKey != null) {
+                SSHSessionPool.get().release(pooledKey, this.session, reusable);
+                pooledKey = null;
+            } else {
+                SftpChannelPool.close(this.session);
+                this.session.disconnect();
+            }
             this.session = null;
         }
     }
@@ -400,6 +1164,10 @@ public class SSHClient implements AutoCloseable {
         void apply(ChannelSftp channel) throws JSchException, SftpException;
     }
 
+    interface RemoteChecksums {
+        Map<String, String> of(List<String> files) throws JSchException, IOException;
+    }
+
     public static class ExitStatusException extends Exception {
         private final int exitStatus;
         private final String output;
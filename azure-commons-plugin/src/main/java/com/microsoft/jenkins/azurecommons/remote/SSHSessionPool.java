@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import jenkins.util.Timer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of authenticated SSH sessions, shared by the {@link SSHClient} instances connecting to the same host with the
+ * same credentials.
+ * <p>
+ * Opening a session costs a TCP connection, a key exchange and an authentication. With pooling enabled, closing an
+ * {@code SSHClient} returns its session to the pool, and the next client connecting to the same host, port, username
+ * and credentials reuses it. The idle sessions are checked before they are handed out and are disconnected once
+ * they have been idle for too long. The number of sessions open to one host and port is bounded, whatever their
+ * username and credentials.
+ * <p>
+ * Pooling is disabled by default, enable it with the system property
+ * {@code com.microsoft.jenkins.azurecommons.remote.SSHSessionPool.enabled} or per client with
+ * {@link SSHClient#withSessionPool(boolean)}.
+ */
+public final class SSHSessionPool {
+    private static final Logger LOGGER = Logger.getLogger(SSHSessionPool.class.getName());
+
+    private static final String PROPERTY_PREFIX = SSHSessionPool.class.getName();
+
+    static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".enabled");
+    static final int MAX_PER_HOST = Integer.getInteger(PROPERTY_PREFIX + ".maxPerHost", 8);
+    static final long MAX_IDLE_SECONDS = Long.getLong(PROPERTY_PREFIX + ".maxIdleSeconds", 300);
+    static final long BORROW_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".borrowTimeoutSeconds", 60);
+
+    private static final SSHSessionPool INSTANCE = new SSHSessionPool(MAX_PER_HOST, MAX_IDLE_SECONDS, null);
+
+    private final int maxPerHost;
+    private final long maxIdleMillis;
+    private final ScheduledExecutorService timer;
+
+    private final Map<Key, Deque<IdleSession>> idle = new HashMap<>();
+
+    /**
+     * The number of sessions open or being opened by {@code host:port}.
+     */
+    private final Map<String, Integer> open = new HashMap<>();
+
+    private ScheduledFuture<?> sweeper;
+
+    private long created;
+    private long reused;
+    private long evicted;
+
+    /**
+     * Create a pool.
+     *
+     * @param maxPerHost     the maximum number of sessions open to one host and port.
+     * @param maxIdleSeconds the time after which an idle session is disconnected.
+     * @param timer          runs the eviction of the idle sessions, {@code null} for the Jenkins timer.
+     */
+    SSHSessionPool(int maxPerHost, long maxIdleSeconds, ScheduledExecutorService timer) {
+        this.maxPerHost = maxPerHost;
+        this.maxIdleMillis = TimeUnit.SECONDS.toMillis(maxIdleSeconds);
+        this.timer = timer;
+    }
+
+    public static SSHSessionPool get() {
+        return INSTANCE;
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Take an idle session to the target, or open a new one if there's none.
+     * <p>
+     * If the maximum number of sessions is open to the host, an idle session of another identity is disconnected to
+     * make room, or else wait for one of them to be released.
+     *
+     * @param key     the target and the identity of the session.
+     * @param factory opens and authenticates a new session.
+     * @return a connected session, to be given back with {@link #release(Key, Session, boolean)}.
+     * @throws JSchException if no session could be opened.
+     */
+    Session borrow(Key key, SessionFactory factory) throws JSchException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(BORROW_TIMEOUT_SECONDS);
+        List<Session> stale = new ArrayList<>();
+        Session session = null;
+        try {
+            synchronized (this) {
+                while (true) {
+                    IdleSession candidate = pollIdle(key);
+                    if (candidate != null) {
+                        if (candidate.isReusable(System.currentTimeMillis(), maxIdleMillis)) {
+                            ++reused;
+                            return candidate.session;
+                        }
+                        stale.add(candidate.session);
+                        ++evicted;
+                        close(key);
+                        continue;
+                    }
+                    if (openCount(key) < maxPerHost) {
+                        open.put(key.target(), openCount(key) + 1);
+                        break;
+                    }
+                    IdleSession other = pollIdleOnSameTarget(key);
+                    if (other != null) {
+                        stale.add(other.session);
+                        ++evicted;
+                        decrement(key);
+                        continue;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new JSchException("Timed out waiting for an idle SSH session to " + key);
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new JSchException("Interrupted while waiting for an idle SSH session to " + key, e);
+                    }
+                }
+            }
+        } finally {
+            disconnect(stale);
+        }
+        try {
+            session = factory.create();
+            return session;
+        } finally {
+            synchronized (this) {
+                if (session == null) {
+                    close(key);
+                } else {
+                    ++created;
+                    scheduleSweep();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back a session taken with {@link #borrow(Key, SessionFactory)}.
+     *
+     * @param key      the key the session was taken with.
+     * @param session  the session.
+     * @param reusable whether the session can be handed out again, sessions with state attached such as port
+     *                 forwarding must not.
+     */
+    void release(Key key, Session session, boolean reusable) {
+        if (reusable && session.isConnected()) {
+            synchronized (this) {
+                if (sweeper != null) {
+                    Deque<IdleSession> sessions = idle.get(key);
+                    if (sessions == null) {
+                        sessions = new ArrayDeque<>();
+                        idle.put(key, sessions);
+                    }
+                    sessions.push(new IdleSession(session, System.currentTimeMillis()));
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+        SftpChannelPool.close(session);
+        session.disconnect();
+        synchronized (this) {
+            close(key);
+        }
+    }
+
+    /**
+     * Disconnect the sessions that have been idle for too long.
+     */
+    public void evictIdle() {
+        List<Session> stale = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Key, Deque<IdleSession>>> it = idle.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Key, Deque<IdleSession>> entry = it.next();
+                Iterator<IdleSession> sessions = entry.getValue().iterator();
+                while (sessions.hasNext()) {
+                    IdleSession session = sessions.next();
+                    if (now - session.since > maxIdleMillis || !session.session.isConnected()) {
+                        sessions.remove();
+                        stale.add(session.session);
+                        decrement(entry.getKey());
+                    }
+                }
+                if (entry.getValue().isEmpty()) {
+                    it.remove();
+                }
+            }
+            evicted += stale.size();
+            if (!stale.isEmpty()) {
+                notifyAll();
+            }
+        }
+        disconnect(stale);
+    }
+
+    /**
+     * Disconnect all the idle sessions. The sessions in use are disconnected when they are released.
+     */
+    public void shutdown() {
+        List<Session> sessions = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Key, Deque<IdleSession>> entry : idle.entrySet()) {
+                for (IdleSession session : entry.getValue()) {
+                    sessions.add(session.session);
+                    decrement(entry.getKey());
+                }
+            }
+            idle.clear();
+            if (sweeper != null) {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+            notifyAll();
+        }
+        disconnect(sessions);
+    }
+
+    /**
+     * Number of sessions opened by the pool.
+     */
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * Number of times an idle session was handed out instead of opening a new one.
+     */
+    public synchronized long getReusedCount() {
+        return reused;
+    }
+
+    /**
+     * Number of idle sessions disconnected because they have been idle for too long or were broken.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (Deque<IdleSession> sessions : idle.values()) {
+            count += sessions.size();
+        }
+        return count;
+    }
+
+    public synchronized int getOpenCount() {
+        int count = 0;
+        for (Integer value : open.values()) {
+            count += value;
+        }
+        return count;
+    }
+
+    private IdleSession pollIdle(Key key) {
+        Deque<IdleSession> sessions = idle.get(key);
+        if (sessions == null) {
+            return null;
+        }
+        IdleSession session = sessions.poll();
+        if (sessions.isEmpty()) {
+            idle.remove(key);
+        }
+        return session;
+    }
+
+    /**
+     * Take an idle session of another identity to the same host and port.
+     */
+    private IdleSession pollIdleOnSameTarget(Key key) {
+        for (Key other : idle.keySet()) {
+            if (other.target().equals(key.target())) {
+                return pollIdle(other);
+            }
+        }
+        return null;
+    }
+
+    private int openCount(Key key) {
+        Integer count = open.get(key.target());
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Account for a session that has been disconnected and wake up a waiting borrower.
+     */
+    private void close(Key key) {
+        decrement(key);
+        notifyAll();
+    }
+
+    private void decrement(Key key) {
+        int count = openCount(key) - 1;
+        if (count <= 0) {
+            open.remove(key.target());
+        } else {
+            open.put(key.target(), count);
+        }
+    }
+
+    private void scheduleSweep() {
+        if (sweeper == null) {
+            long period = Math.max(1, maxIdleMillis / 2);
+            sweeper = (timer == null ? Timer.get() : timer).scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void disconnect(List<Session> sessions) {
+        for (Session session : sessions) {
+            try {
+                SftpChannelPool.close(session);
+                session.disconnect();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to disconnect the SSH session", e);
+            }
+        }
+    }
+
+    /**
+     * Opens and authenticates a new session.
+     */
+    interface SessionFactory {
+        Session create() throws JSchException;
+    }
+
+    /**
+     * The target and the identity of a pooled session.
+     */
+    static final class Key {
+        private final String host;
+        private final int port;
+        private final String username;
+        private final String fingerprint;
+
+        Key(String host, int port, String username, String fingerprint) {
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key that = (Key) o;
+            return port == that.port
+                    && Objects.equals(host, that.host)
+                    && Objects.equals(username, that.username)
+                    && Objects.equals(fingerprint, that.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, username, fingerprint);
+        }
+
+        /**
+         * The host and port, the number of sessions is bounded per target.
+         */
+        String target() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return username + "@" + host + ":" + port;
+        }
+    }
+
+    private static final class IdleSession {
+        private final Session session;
+        private final long since;
+
+        IdleSession(Session session, long since) {
+            this.session = session;
+            this.since = since;
+        }
+
+        /**
+         * Health check before the session is handed out again. The keep-alive fails if the transport is broken.
+         */
+        boolean isReusable(long now, long maxIdleMillis) {
+            if (now - since > maxIdleMillis || !session.isConnected()) {
+                return false;
+            }
+            try {
+                session.sendKeepAliveMsg();
+                return true;
+            } catch (Exception e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived SFTP channels of one SSH session.
+ * <p>
+ * Opening an SFTP channel costs a few round trips for the channel and the SFTP subsystem handshake, which dominates
+ * the copy of small files. The channels are kept open once a transfer is done and are handed out to the next
+ * transfer on the same session, up to a small number of channels used concurrently. A session kept in the
+ * {@link SSHSessionPool} keeps its channels.
+ * <p>
+ * The channels must be closed with {@link #close(Session)} before their session is disconnected. The pools of the
+ * sessions found disconnected are dropped as well when a pool is looked up.
+ * <p>
+ * The channels are shared, so the transfers must not change their state, for example the working directory.
+ */
+final class SftpChannelPool {
+    private static final String PROPERTY_PREFIX = SftpChannelPool.class.getName();
+
+    static final boolean ENABLED = Boolean.getBoolean(PROPERTY_PREFIX + ".enabled");
+    static final int MAX_CHANNELS = Integer.getInteger(PROPERTY_PREFIX + ".maxChannels", 4);
+    static final long ACQUIRE_TIMEOUT_SECONDS = Long.getLong(PROPERTY_PREFIX + ".acquireTimeoutSeconds", 300);
+
+    /**
+     * The pools by session. The idle channels reference their session, so the entries are removed explicitly by
+     * {@link #close(Session)}.
+     */
+    private static final Map<Session, SftpChannelPool> POOLS = new IdentityHashMap<>();
+
+    private final int maxChannels;
+    private final long acquireTimeoutMillis;
+    private final Deque<ChannelSftp> idle = new ArrayDeque<>();
+    private int open;
+    private boolean closed;
+
+    SftpChannelPool(int maxChannels) {
+        this(maxChannels, TimeUnit.SECONDS.toMillis(ACQUIRE_TIMEOUT_SECONDS));
+    }
+
+    SftpChannelPool(int maxChannels, long acquireTimeoutMillis) {
+        this.maxChannels = maxChannels;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    static SftpChannelPool of(Session session) {
+        List<SftpChannelPool> dead = new ArrayList<>();
+        SftpChannelPool pool;
+        synchronized (POOLS) {
+            Iterator<Map.Entry<Session, SftpChannelPool>> it = POOLS.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Session, SftpChannelPool> entry = it.next();
+                if (entry.getKey() != session && !entry.getKey().isConnected()) {
+                    dead.add(entry.getValue());
+                    it.remove();
+                }
+            }
+            pool = POOLS.get(session);
+            if (pool == null) {
+                pool = new SftpChannelPool(MAX_CHANNELS);
+                POOLS.put(session, pool);
+            }
+        }
+        for (SftpChannelPool stale : dead) {
+            stale.shutdown();
+        }
+        return pool;
+    }
+
+    /**
+     * Disconnect the idle channels of the session before the session itself is disconnected.
+     */
+    static void close(Session session) {
+        SftpChannelPool pool;
+        synchronized (POOLS) {
+            pool = POOLS.remove(session);
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    int getMaxChannels() {
+        return maxChannels;
+    }
+
+    /**
+     * Take an idle channel, or open a new one if less than the maximum number of channels are open. Otherwise wait
+     * for a channel to be released.
+     *
+     * @param session the session of the pool.
+     * @return a connected channel, to be given back with {@link #release(ChannelSftp)}.
+     * @throws JSchException if the channel cannot be opened.
+     */
+    ChannelSftp acquire(Session session) throws JSchException {
+        long deadline = System.currentTimeMillis() + acquireTimeoutMillis;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new JSchException("The SFTP channels of the session have been closed");
+                }
+                ChannelSftp channel = idle.poll();
+                if (channel != null) {
+                    if (channel.isConnected()) {
+                        return channel;
+                    }
+                    --open;
+                    continue;
+                }
+                if (open < maxChannels) {
+                    ++open;
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new JSchException("Timed out waiting for an idle SFTP channel");
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JSchException("Interrupted while waiting for an idle SFTP channel", e);
+                }
+            }
+        }
+        ChannelSftp channel = null;
+        try {
+            channel = (ChannelSftp) session.openChannel("sftp");
+            channel.connect();
+            return channel;
+        } catch (JSchException | RuntimeException e) {
+            if (channel != null) {
+                channel.disconnect();
+            }
+            synchronized (this) {
+                --open;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a channel taken with {@link #acquire(Session)}. A broken channel is dropped.
+     */
+    void release(ChannelSftp channel) {
+        synchronized (this) {
+            if (!closed && channel.isConnected()) {
+                idle.push(channel);
+                notifyAll();
+                return;
+            }
+            --open;
+            notifyAll();
+        }
+        channel.disconnect();
+    }
+
+    /**
+     * Disconnect the idle channels, the channels in use are disconnected when they are released.
+     */
+    void shutdown() {
+        List<ChannelSftp> channels;
+        synchronized (this) {
+            closed = true;
+            channels = new ArrayList<>(idle);
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (ChannelSftp channel : channels) {
+            channel.disconnect();
+        }
+    }
+}
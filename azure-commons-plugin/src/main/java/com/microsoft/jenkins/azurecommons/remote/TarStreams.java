@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.microsoft.jenkins.azurecommons.Constants;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes and reads the tar archives streamed through the remote {@code tar} command, without temporary files.
+ */
+final class TarStreams {
+    static final int MODE_EXECUTABLE = 0755;
+    static final int MODE_REGULAR = 0644;
+    static final int MODE_OWNER_EXECUTE = 0100;
+
+    private TarStreams() {
+        // hide constructor
+    }
+
+    /**
+     * Write the files to the stream as a tar archive.
+     *
+     * @param root  the directory the file paths are relative to.
+     * @param files the paths of the files, separated by {@code /}.
+     * @param out   the stream to write to, left open.
+     * @return the number of bytes of file contents written.
+     * @throws IOException if a file cannot be read or the stream fails.
+     */
+    static long write(File root, List<String> files, OutputStream out) throws IOException {
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out, Constants.UTF8.name());
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        long bytes = 0;
+        for (String path : files) {
+            File file = new File(root, path);
+            TarArchiveEntry entry = new TarArchiveEntry(path);
+            entry.setSize(file.length());
+            entry.setModTime(file.lastModified());
+            entry.setMode(file.canExecute() ? MODE_EXECUTABLE : MODE_REGULAR);
+            tar.putArchiveEntry(entry);
+            try (InputStream in = new FileInputStream(file)) {
+                bytes += IOUtils.copy(in, tar);
+            }
+            tar.closeArchiveEntry();
+        }
+        tar.finish();
+        tar.flush();
+        return bytes;
+    }
+
+    /**
+     * Extract the regular files of a tar archive to the directory.
+     *
+     * @param in      the archive stream.
+     * @param destDir the target directory.
+     * @param filter  selects the files to extract by their path in the archive.
+     * @param start   when the transfer started, in milliseconds since the epoch.
+     * @return the figures of the files extracted.
+     * @throws IOException if the archive is invalid, has an entry outside the target directory, or a file cannot be
+     *                     written.
+     */
+    static TransferStats extract(InputStream in, File destDir, PathFilter filter, long start) throws IOException {
+        String root = destDir.getCanonicalPath() + File.separator;
+        TarArchiveInputStream tar = new TarArchiveInputStream(in, Constants.UTF8.name());
+        int files = 0;
+        long bytes = 0;
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+            String path = normalize(entry.getName());
+            if (!entry.isFile() || path.isEmpty() || !filter.matches(path)) {
+                continue;
+            }
+            File file = new File(destDir, path);
+            if (!file.getCanonicalPath().startsWith(root)) {
+                throw new IOException("Archive entry " + entry.getName() + " is outside of " + destDir);
+            }
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent);
+            }
+            try (OutputStream out = new FileOutputStream(file)) {
+                bytes += IOUtils.copy(tar, out);
+            }
+            if (!file.setLastModified(entry.getModTime().getTime())) {
+                throw new IOException("Failed to set the modification time of " + file);
+            }
+            if ((entry.getMode() & MODE_OWNER_EXECUTE) != 0 && !file.setExecutable(true)) {
+                throw new IOException("Failed to make " + file + " executable");
+            }
+            ++files;
+        }
+        return new TransferStats(files, bytes, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Strip the leading {@code ./} of the entries created by {@code tar -c .}.
+     */
+    static String normalize(String name) {
+        String path = name;
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+}
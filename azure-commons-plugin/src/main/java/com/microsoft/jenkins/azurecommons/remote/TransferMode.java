@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+/**
+ * How {@link SSHClient} copies directory trees.
+ */
+public enum TransferMode {
+    /**
+     * Copy the files one by one over a few concurrent SFTP channels.
+     */
+    SFTP,
+    /**
+     * Stream a tar archive of the tree through a remote {@code tar} command, which saves the round trips of every
+     * file when copying many small files.
+     */
+    TAR,
+    /**
+     * Same as {@link #TAR} with the archive compressed with gzip, for slow links.
+     */
+    TAR_GZIP;
+
+    boolean isTar() {
+        return this != SFTP;
+    }
+
+    boolean isCompressed() {
+        return this == TAR_GZIP;
+    }
+}
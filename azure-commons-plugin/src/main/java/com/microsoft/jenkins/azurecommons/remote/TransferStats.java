@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate figures of a transfer of many files.
+ */
+public final class TransferStats {
+    private static final double BYTES_PER_KB = 1024.0;
+
+    private final int files;
+    private final int skipped;
+    private final long bytes;
+    private final long elapsedMillis;
+
+    public TransferStats(int files, long bytes, long elapsedMillis) {
+        this(files, 0, bytes, elapsedMillis);
+    }
+
+    public TransferStats(int files, int skipped, long bytes, long elapsedMillis) {
+        this.files = files;
+        this.skipped = skipped;
+        this.bytes = bytes;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Number of files transferred.
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /**
+     * Number of files not transferred because they were unchanged.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Number of bytes of file contents transferred.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedMillis <= 0 ? bytes : bytes * (double) TimeUnit.SECONDS.toMillis(1) / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%d files, %d bytes in %d ms (%.1f KB/s)%s",
+                files, bytes, elapsedMillis, getBytesPerSecond() / BYTES_PER_KB,
+                skipped > 0 ? ", " + skipped + " unchanged files skipped" : "");
+    }
+}
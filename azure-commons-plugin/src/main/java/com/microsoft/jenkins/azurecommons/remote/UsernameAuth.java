@@ -8,6 +8,9 @@ package com.microsoft.jenkins.azurecommons.remote;
 import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.microsoft.jenkins.azurecommons.Constants;
 import hudson.util.Secret;
 
 /**
@@ -24,6 +27,23 @@ abstract class UsernameAuth {
         return username;
     }
 
+    /**
+     * Digest of the username and the secrets, which identifies the credentials without revealing them.
+     */
+    abstract String getFingerprint();
+
+    static String fingerprint(Iterable<String> parts) {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String part : parts) {
+            if (part == null) {
+                hasher.putInt(-1);
+            } else {
+                hasher.putInt(part.length()).putString(part, Constants.UTF8);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
     static UsernameAuth fromCredentials(StandardUsernameCredentials credentials) {
         if (credentials instanceof StandardUsernamePasswordCredentials) {
             StandardUsernamePasswordCredentials userPass = (StandardUsernamePasswordCredentials) credentials;
@@ -5,6 +5,8 @@
 
 package com.microsoft.jenkins.azurecommons.remote;
 
+import java.util.Arrays;
+
 /**
  * SSH authentication credentials with username and password.
  */
@@ -19,4 +21,9 @@ class UsernamePasswordAuth extends UsernameAuth {
     String getPassword() {
         return password;
     }
+
+    @Override
+    String getFingerprint() {
+        return fingerprint(Arrays.asList(getUsername(), password));
+    }
 }
@@ -8,7 +8,9 @@ package com.microsoft.jenkins.azurecommons.remote;
 import com.google.common.collect.ImmutableList;
 import com.microsoft.jenkins.azurecommons.Constants;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * SSH authentication credentials with username and private keys.
@@ -38,4 +40,13 @@ class UsernamePrivateKeyAuth extends UsernameAuth {
     ImmutableList<String> getPrivateKeys() {
         return privateKeys;
     }
+
+    @Override
+    String getFingerprint() {
+        List<String> parts = new ArrayList<>();
+        parts.add(getUsername());
+        parts.add(passPhrase);
+        parts.addAll(privateKeys);
+        return fingerprint(parts);
+    }
 }
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.azurecommons;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class CredentialsChangeListenerTest {
+    private final Credentials kept = mock(Credentials.class);
+    private final Credentials removed = mock(Credentials.class);
+    private final Credentials updated = mock(Credentials.class);
+
+    @Test
+    public void unchangedStoreChangesNothing() {
+        assertTrue(CredentialsChangeListener.changed(Arrays.asList(kept, updated), Arrays.asList(kept, updated))
+                .isEmpty());
+        assertTrue(CredentialsChangeListener.changed(null, Collections.<Credentials>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void replacedAndRemovedCredentialsChange() {
+        Credentials replacement = mock(Credentials.class);
+        assertEquals(Arrays.asList(removed, updated, replacement), CredentialsChangeListener.changed(
+                Arrays.asList(kept, removed, updated), Arrays.asList(kept, replacement)));
+    }
+
+    @Test
+    public void firstSaveMayHaveChangedAll() {
+        assertEquals(Arrays.asList(kept, updated),
+                CredentialsChangeListener.changed(null, Arrays.asList(kept, updated)));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathFilterTest {
+    @Test
+    public void matchesGlobs() {
+        PathFilter filter = new PathFilter("**/*.jar, conf/", "**/test-*.jar");
+
+        assertTrue(filter.matches("app.jar"));
+        assertTrue(filter.matches("lib/deep/dep.jar"));
+        assertTrue(filter.matches("conf/app/settings.yml"));
+        assertFalse(filter.matches("lib/test-dep.jar"));
+        assertFalse(filter.matches("README.md"));
+        assertFalse(filter.matches("lib/app.jar.bak"));
+    }
+
+    @Test
+    public void singleStarStaysInSegment() {
+        PathFilter filter = new PathFilter("lib/*.so?", null);
+
+        assertTrue(filter.matches("lib/libfoo.so1"));
+        assertFalse(filter.matches("lib/x/libfoo.so1"));
+        assertFalse(filter.matches("lib/libfoo.so"));
+    }
+
+    @Test
+    public void emptyIncludesMatchEverything() {
+        assertTrue(PathFilter.ALL.matches("a/b/c.txt"));
+        assertFalse(new PathFilter(" ", "**/*.tmp").matches("a/b.tmp"));
+    }
+
+    @Test
+    public void quotesForRemoteShell() {
+        assertEquals("'it'\\''s here'", SSHClient.quote("it's here"));
+        assertEquals("dir/file", SSHClient.remotePath("dir/", "file"));
+        assertEquals("dir", SSHClient.remotePath("dir", ""));
+    }
+}
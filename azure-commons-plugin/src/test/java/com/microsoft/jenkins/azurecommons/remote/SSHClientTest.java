@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.jcraft.jsch.SftpATTRS;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class SSHClientTest {
+    private static final String DIGEST_A = Strings.repeat("a", SSHClient.SHA256_HEX_LENGTH);
+    private static final String DIGEST_B = Strings.repeat("b", SSHClient.SHA256_HEX_LENGTH);
+    private static final int PIPE_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void sizeAndModificationTimeDecideTheChangedFiles() throws Exception {
+        Map<String, File> local = new HashMap<>();
+        local.put("same", file("same", "content"));
+        local.put("resized", file("resized", "content"));
+        local.put("touched", file("touched", "content"));
+        local.put("missing", file("missing", "content"));
+        Map<String, SftpATTRS> remote = new HashMap<>();
+        remote.put("same", attrs(local.get("same"), 0));
+        remote.put("resized", attrs(local.get("resized"), 1));
+        remote.put("touched", attrs(local.get("touched"), 0));
+        doReturn((int) seconds(local.get("touched")) - 1).when(remote.get("touched")).getMTime();
+
+        List<String> changed = SSHClient.changedFiles(IncrementalCopy.SIZE_AND_MTIME, local, remote,
+                files -> {
+                    throw new AssertionError("No checksum should be computed");
+                });
+        assertEquals(Arrays.asList("missing", "resized", "touched"), changed);
+    }
+
+    @Test
+    public void checksumDecidesTheChangedFilesOfTheSameSize() throws Exception {
+        Map<String, File> local = new HashMap<>();
+        local.put("same", file("same", "content"));
+        local.put("edited", file("edited", "content"));
+        local.put("unreadable", file("unreadable", "content"));
+        local.put("resized", file("resized", "content"));
+        Map<String, SftpATTRS> remote = new HashMap<>();
+        for (Map.Entry<String, File> entry : local.entrySet()) {
+            // the modification time does not matter
+            SftpATTRS attrs = attrs(entry.getValue(), entry.getKey().equals("resized") ? 1 : 0);
+            doReturn(0).when(attrs).getMTime();
+            remote.put(entry.getKey(), attrs);
+        }
+        String digest = Hashing.sha256().hashString("content", StandardCharsets.UTF_8).toString();
+        List<List<String>> requested = new ArrayList<>();
+
+        List<String> changed = SSHClient.changedFiles(IncrementalCopy.CHECKSUM, local, remote, files -> {
+            requested.add(new ArrayList<>(files));
+            Map<String, String> digests = new HashMap<>();
+            digests.put("same", digest);
+            digests.put("edited", DIGEST_A);
+            return digests;
+        });
+        assertEquals(Arrays.asList("edited", "resized", "unreadable"), changed);
+        assertEquals(1, requested.size());
+        Collections.sort(requested.get(0));
+        assertEquals(Arrays.asList("edited", "same", "unreadable"), requested.get(0));
+    }
+
+    @Test
+    public void checksumsAreParsed() {
+        Map<String, String> digests = SSHClient.parseChecksums(
+                DIGEST_A + "  plain.txt\n"
+                        + DIGEST_B + " *dir/binary mode.bin\n"
+                        + "sha256sum: unreadable: Permission denied\n"
+                        + "\n");
+        assertEquals(2, digests.size());
+        assertEquals(DIGEST_A, digests.get("plain.txt"));
+        assertEquals(DIGEST_B, digests.get("dir/binary mode.bin"));
+    }
+
+    @Test
+    public void escapedChecksumLinesAreParsed() {
+        Map<String, String> digests = SSHClient.parseChecksums(
+                "\\" + DIGEST_A + "  back\\\\slash\n"
+                        + "\\" + DIGEST_B + "  line\\nbreak\n");
+        assertEquals(2, digests.size());
+        assertEquals(DIGEST_A, digests.get("back\\slash"));
+        assertEquals(DIGEST_B, digests.get("line\nbreak"));
+        assertTrue(SSHClient.parseChecksums("\\" + DIGEST_A).isEmpty());
+    }
+
+    @Test(timeout = 30000)
+    public void largeInputIsWrittenWhileTheOutputIsRead() throws Exception {
+        // the remote command answers each NUL-terminated name while the names are still written, through buffers
+        // much smaller than the input and output
+        final PipedInputStream commandIn = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream remoteIn = new PipedOutputStream(commandIn);
+        PipedInputStream remoteOut = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream commandOut = new PipedOutputStream(remoteOut);
+        Thread command = new Thread(() -> {
+            try (OutputStream out = commandOut) {
+                int c;
+                while ((c = commandIn.read()) != -1) {
+                    if (c == 0) {
+                        out.write((DIGEST_A + "  file\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        command.start();
+
+        int files = 4 * PIPE_SIZE;
+        byte[] input = new byte[files * 2];
+        for (int i = 0; i < files; ++i) {
+            input[2 * i] = 'f';
+        }
+        byte[] output = SSHClient.exchange(input, remoteIn, remoteOut);
+        assertEquals(files * (SSHClient.SHA256_HEX_LENGTH + "  file\n".length()), output.length);
+        command.join();
+    }
+
+    private File file(String name, String content) throws Exception {
+        File file = temp.newFile(name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static SftpATTRS attrs(File file, long extraBytes) {
+        SftpATTRS attrs = mock(SftpATTRS.class);
+        doReturn(file.length() + extraBytes).when(attrs).getSize();
+        doReturn((int) seconds(file)).when(attrs).getMTime();
+        return attrs;
+    }
+
+    private static long seconds(File file) {
+        return TimeUnit.MILLISECONDS.toSeconds(file.lastModified());
+    }
+}
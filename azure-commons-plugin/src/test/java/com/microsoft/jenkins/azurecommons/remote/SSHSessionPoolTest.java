@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.jcraft.jsch.Session;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SSHSessionPoolTest {
+    private static final SSHSessionPool.Key ALICE = new SSHSessionPool.Key("host", 22, "alice", "key-a");
+    private static final SSHSessionPool.Key BOB = new SSHSessionPool.Key("host", 22, "bob", "key-b");
+    private static final SSHSessionPool.Key OTHER_HOST = new SSHSessionPool.Key("other", 22, "alice", "key-a");
+
+    private final ScheduledExecutorService timer = mock(ScheduledExecutorService.class);
+    private final ScheduledFuture<?> sweeper = mock(ScheduledFuture.class);
+    private final ExecutorService borrowers = Executors.newSingleThreadExecutor();
+
+    @Before
+    public void setUp() {
+        doReturn(sweeper).when(timer).scheduleWithFixedDelay(any(Runnable.class), anyLong(), anyLong(), any());
+    }
+
+    @After
+    public void tearDown() {
+        borrowers.shutdownNow();
+    }
+
+    @Test
+    public void releasedSessionIsReused() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(2, 300, timer);
+        Session session = connected();
+
+        assertSame(session, pool.borrow(ALICE, factory(session)));
+        pool.release(ALICE, session, true);
+        assertEquals(1, pool.getIdleCount());
+
+        assertSame(session, pool.borrow(ALICE, factory()));
+        assertEquals(1, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void sessionWithStateIsDisconnected() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(2, 300, timer);
+        Session session = connected();
+
+        pool.borrow(ALICE, factory(session));
+        pool.release(ALICE, session, false);
+
+        verify(session).disconnect();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    @Test
+    public void limitIsPerHostAndBorrowerWaits() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(1, 300, timer);
+        Session first = connected();
+        Session second = connected();
+        pool.borrow(ALICE, factory(first));
+
+        // another identity to the same host waits, another host does not
+        Future<Session> waiting = borrowers.submit(() -> pool.borrow(BOB, factory(second)));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("The borrower should wait for a session to the host to be released");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        Session elsewhere = connected();
+        assertSame(elsewhere, pool.borrow(OTHER_HOST, factory(elsewhere)));
+
+        pool.release(ALICE, first, false);
+        assertSame(second, waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(2, pool.getOpenCount());
+    }
+
+    @Test
+    public void idleSessionOfAnotherIdentityMakesRoom() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(1, 300, timer);
+        Session first = connected();
+        Session second = connected();
+        pool.borrow(ALICE, factory(first));
+        pool.release(ALICE, first, true);
+
+        assertSame(second, pool.borrow(BOB, factory(second)));
+        verify(first).disconnect();
+        assertEquals(1, pool.getEvictedCount());
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void idleAndBrokenSessionsAreEvicted() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(2, 300, timer);
+        Session healthy = connected();
+        Session broken = connected();
+        pool.borrow(ALICE, factory(healthy));
+        pool.borrow(ALICE, factory(broken));
+        pool.release(ALICE, healthy, true);
+        pool.release(ALICE, broken, true);
+        doReturn(false).when(broken).isConnected();
+
+        pool.evictIdle();
+        verify(broken).disconnect();
+        verify(healthy, never()).disconnect();
+        assertEquals(1, pool.getEvictedCount());
+        assertEquals(1, pool.getIdleCount());
+
+        SSHSessionPool expiring = new SSHSessionPool(2, 0, timer);
+        expiring.borrow(ALICE, factory(healthy));
+        expiring.release(ALICE, healthy, true);
+        long released = System.currentTimeMillis();
+        while (System.currentTimeMillis() == released) {
+            Thread.yield();
+        }
+        expiring.evictIdle();
+        verify(healthy).disconnect();
+        assertEquals(0, expiring.getIdleCount());
+        assertEquals(0, expiring.getOpenCount());
+    }
+
+    @Test
+    public void shutdownDisconnectsTheIdleSessions() throws Exception {
+        SSHSessionPool pool = new SSHSessionPool(2, 300, timer);
+        Session idle = connected();
+        Session used = connected();
+        pool.borrow(ALICE, factory(idle));
+        pool.borrow(ALICE, factory(used));
+        pool.release(ALICE, idle, true);
+
+        pool.shutdown();
+        verify(idle).disconnect();
+        verify(sweeper).cancel(false);
+        assertEquals(1, pool.getOpenCount());
+
+        pool.release(ALICE, used, true);
+        verify(used).disconnect();
+        assertEquals(0, pool.getOpenCount());
+    }
+
+    private static Session connected() {
+        Session session = mock(Session.class);
+        doReturn(true).when(session).isConnected();
+        return session;
+    }
+
+    private static SSHSessionPool.SessionFactory factory(Session... sessions) {
+        final Iterator<Session> it = Arrays.asList(sessions).iterator();
+        return () -> {
+            if (!it.hasNext()) {
+                throw new AssertionError("No session should be opened");
+            }
+            return it.next();
+        };
+    }
+}
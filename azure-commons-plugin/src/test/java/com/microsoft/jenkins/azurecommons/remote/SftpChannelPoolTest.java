@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SftpChannelPoolTest {
+    private final ExecutorService acquirers = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        acquirers.shutdownNow();
+    }
+
+    @Test
+    public void acquireWaitsForARelease() throws Exception {
+        ChannelSftp channel = connected();
+        Session session = session(channel);
+        SftpChannelPool pool = new SftpChannelPool(1, TimeUnit.SECONDS.toMillis(30));
+        assertSame(channel, pool.acquire(session));
+
+        Future<ChannelSftp> waiting = acquirers.submit(() -> pool.acquire(session));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("The acquirer should wait for the channel to be released");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        pool.release(channel);
+        assertSame(channel, waiting.get(5, TimeUnit.SECONDS));
+        verify(session, times(1)).openChannel("sftp");
+    }
+
+    @Test
+    public void acquireTimesOut() throws Exception {
+        Session session = session(connected());
+        SftpChannelPool pool = new SftpChannelPool(1, 50);
+        pool.acquire(session);
+
+        try {
+            pool.acquire(session);
+            fail("The acquirer should give up once the timeout is reached");
+        } catch (JSchException e) {
+            assertTrue(e.getMessage().contains("Timed out"));
+        }
+    }
+
+    @Test
+    public void brokenChannelIsDropped() throws Exception {
+        ChannelSftp broken = connected();
+        ChannelSftp stale = connected();
+        ChannelSftp fresh = connected();
+        Session session = session(broken, stale, fresh);
+        SftpChannelPool pool = new SftpChannelPool(1, 50);
+
+        // broken while in use, dropped on release
+        pool.acquire(session);
+        doReturn(false).when(broken).isConnected();
+        pool.release(broken);
+        verify(broken).disconnect();
+
+        // broken while idle, dropped on acquire
+        assertSame(stale, pool.acquire(session));
+        pool.release(stale);
+        doReturn(false).when(stale).isConnected();
+        assertSame(fresh, pool.acquire(session));
+        verify(session, times(3)).openChannel("sftp");
+    }
+
+    @Test
+    public void shutdownWhileInUse() throws Exception {
+        ChannelSftp used = connected();
+        ChannelSftp idle = connected();
+        Session session = session(used, idle);
+        SftpChannelPool pool = new SftpChannelPool(2, TimeUnit.SECONDS.toMillis(30));
+        pool.acquire(session);
+        pool.release(pool.acquire(session));
+
+        pool.shutdown();
+        verify(idle).disconnect();
+        verify(used, never()).disconnect();
+
+        try {
+            pool.acquire(session);
+            fail("A closed pool should not hand out channels");
+        } catch (JSchException e) {
+            assertTrue(e.getMessage().contains("closed"));
+        }
+
+        pool.release(used);
+        verify(used).disconnect();
+    }
+
+    @Test
+    public void shutdownWakesTheWaitingAcquirers() throws Exception {
+        Session session = session(connected());
+        SftpChannelPool pool = new SftpChannelPool(1, TimeUnit.SECONDS.toMillis(30));
+        pool.acquire(session);
+
+        Future<ChannelSftp> waiting = acquirers.submit(() -> pool.acquire(session));
+        try {
+            waiting.get(200, TimeUnit.MILLISECONDS);
+            fail("The acquirer should wait for the channel to be released");
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        pool.shutdown();
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+            fail("The waiting acquirer should fail once the pool is closed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof JSchException);
+        }
+    }
+
+    @Test
+    public void poolsOfDisconnectedSessionsAreDropped() throws Exception {
+        ChannelSftp channel = connected();
+        Session gone = session(channel);
+        Session live = session();
+        try {
+            SftpChannelPool pool = SftpChannelPool.of(gone);
+            assertSame(pool, SftpChannelPool.of(gone));
+            pool.release(pool.acquire(gone));
+
+            doReturn(false).when(gone).isConnected();
+            SftpChannelPool.of(live);
+            verify(channel).disconnect();
+            assertNotSame(pool, SftpChannelPool.of(gone));
+        } finally {
+            SftpChannelPool.close(gone);
+            SftpChannelPool.close(live);
+        }
+    }
+
+    private static ChannelSftp connected() {
+        ChannelSftp channel = mock(ChannelSftp.class);
+        doReturn(true).when(channel).isConnected();
+        return channel;
+    }
+
+    private static Session session(ChannelSftp... channels) throws JSchException {
+        Session session = mock(Session.class);
+        doReturn(true).when(session).isConnected();
+        if (channels.length > 0) {
+            ChannelSftp[] rest = new ChannelSftp[channels.length - 1];
+            System.arraycopy(channels, 1, rest, 0, rest.length);
+            when(session.openChannel("sftp")).thenReturn(channels[0], rest);
+        }
+        return session;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See LICENSE in the project root for license information.
+ */
+
+package com.microsoft.jenkins.azurecommons.remote;
+
+import com.microsoft.jenkins.azurecommons.Constants;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class TarStreamsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File source = folder.newFolder("source");
+        write(new File(source, "a.txt"), "alpha");
+        write(new File(source, "lib/deep/b.jar"), "bravo!");
+        write(new File(source, "lib/c.tmp"), "charlie");
+
+        List<String> files = SSHClient.listLocalFiles(source, PathFilter.ALL);
+        assertEquals(Arrays.asList("a.txt", "lib/c.tmp", "lib/deep/b.jar"), files);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        assertEquals(18, TarStreams.write(source, files, archive));
+
+        File dest = folder.newFolder("dest");
+        TransferStats stats = TarStreams.extract(new ByteArrayInputStream(archive.toByteArray()), dest,
+                new PathFilter(null, "**/*.tmp"), System.currentTimeMillis());
+
+        assertEquals(2, stats.getFiles());
+        assertEquals(11, stats.getBytes());
+        assertEquals("bravo!", read(new File(dest, "lib/deep/b.jar")));
+        assertEquals(new File(source, "a.txt").lastModified() / 1000, new File(dest, "a.txt").lastModified() / 1000);
+        assertFalse(new File(dest, "lib/c.tmp").exists());
+    }
+
+    @Test
+    public void entryOutsideOfTargetIsRejected() throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(archive)) {
+            TarArchiveEntry entry = new TarArchiveEntry("../evil.sh");
+            entry.setSize(1);
+            tar.putArchiveEntry(entry);
+            tar.write('x');
+            tar.closeArchiveEntry();
+        }
+        try {
+            TarStreams.extract(new ByteArrayInputStream(archive.toByteArray()), folder.newFolder("dest"),
+                    PathFilter.ALL, System.currentTimeMillis());
+            fail("The entry outside of the target directory should be rejected");
+        } catch (IOException e) {
+            assertFalse(new File(folder.getRoot(), "evil.sh").exists());
+        }
+    }
+
+    @Test
+    public void normalizesEntryNames() {
+        assertEquals("a/b", TarStreams.normalize("./a/b"));
+        assertEquals("dir", TarStreams.normalize("./dir/"));
+        assertEquals("", TarStreams.normalize("./"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(Constants.UTF8));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), Constants.UTF8);
+    }
+}